@@ -0,0 +1,31 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+
+/**
+ * MessageRouter that doesn't route anything, so subscriptions can be measured without an event-bus.
+ */
+public class BenchmarkMessageRouter implements MessageRouter {
+    @Override
+    public void publishChannelMessages(String channel, ChatEnvelope envelope) {
+    }
+
+    @Override
+    public void publishPrivateMessage(String userId, ChatMessage message) {
+    }
+
+    @Override
+    public void publishUserUpdate(String userId, JsonArray channels) {
+    }
+
+    @Override
+    public Registration registerChannel(String channel, Handler<ChatEnvelope> handler) {
+        return () -> {};
+    }
+
+    @Override
+    public Registration registerUser(String userId, Handler<ChatMessage> privateMessageHandler, Handler<JsonArray> updateHandler) {
+        return () -> {};
+    }
+}
@@ -0,0 +1,30 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BenchmarkMessages {
+    public static final String CHANNEL = "GLOBAL";
+
+    public static ChatMessage createMessage(int index) {
+        return new ChatMessage(
+            "user" + (index % 50),
+            "User " + (index % 50),
+            CHANNEL,
+            "Message number " + index + " with a <b>bold</b> word and a <a href=\"http://example.com\">link</a>",
+            1500000000000L + index,
+            new JsonObject().put("color", "#ff0000").put("index", index),
+            Collections.emptyList());
+    }
+
+    public static List<ChatMessage> createMessages(int count) {
+        final List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(createMessage(i));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,115 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.auth.User;
+import io.vertx.ext.web.Session;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SockJSSocket that only counts what is written to it.
+ */
+public class BenchmarkSocket implements SockJSSocket {
+    private final String id;
+    private final Session session;
+    private final LongAdder writes;
+
+    public BenchmarkSocket(String id, Session session, LongAdder writes) {
+        this.id = id;
+        this.session = session;
+        this.writes = writes;
+    }
+
+    @Override
+    public SockJSSocket write(Buffer data) {
+        writes.increment();
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return false;
+    }
+
+    @Override
+    public SockJSSocket exceptionHandler(Handler<Throwable> handler) {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket handler(Handler<Buffer> handler) {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket pause() {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket resume() {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket endHandler(Handler<Void> endHandler) {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket setWriteQueueMaxSize(int maxSize) {
+        return this;
+    }
+
+    @Override
+    public SockJSSocket drainHandler(Handler<Void> handler) {
+        return this;
+    }
+
+    @Override
+    public String writeHandlerID() {
+        return id;
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress localAddress() {
+        return null;
+    }
+
+    @Override
+    public MultiMap headers() {
+        return null;
+    }
+
+    @Override
+    public String uri() {
+        return "/socket/" + id;
+    }
+
+    @Override
+    public Session webSession() {
+        return session;
+    }
+
+    @Override
+    public User webUser() {
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.ext.web.sstore.LocalSessionStore;
+import io.vertx.ext.web.sstore.SessionStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time until a channel-message was written to every local socket of a channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelFanoutBenchmark {
+    private static final int CONTEXTS = 4;
+
+    @Param({"10", "1000", "10000"})
+    public int sockets;
+
+    private final LongAdder writes = new LongAdder();
+    private Vertx vertx;
+    private ChannelSubscription subscription;
+    private ChannelFanout fanout;
+    private ChatEnvelope envelope;
+
+    @Setup
+    public void setup() {
+        vertx = Vertx.vertx();
+        final Context[] contexts = new Context[CONTEXTS];
+        for (int i = 0; i < CONTEXTS; i++) {
+            contexts[i] = vertx.getOrCreateContext();
+        }
+        final SessionStore sessionStore = LocalSessionStore.create(vertx);
+        final OutboundQueuePolicy policy = new OutboundQueuePolicy();
+        subscription = new ChannelSubscription(BenchmarkMessages.CHANNEL);
+        for (int i = 0; i < sockets; i++) {
+            final User user = new User("user" + i);
+            final BenchmarkSocket socket = new BenchmarkSocket("socket" + i, sessionStore.createSession(60000), writes);
+            final Context context = contexts[i % CONTEXTS];
+            user.executeLocked((u) -> u.registerSocket(socket, context, policy));
+            subscription.users.add(user);
+        }
+        fanout = new ChannelFanout(0, 1);
+        envelope = ChatEnvelope.forMessage(BenchmarkMessages.createMessage(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Benchmark
+    public void deliver() {
+        final long expected = writes.sum() + sockets;
+        fanout.deliver(subscription, envelope);
+        while (writes.sum() < expected) {
+            Thread.yield();
+        }
+    }
+}
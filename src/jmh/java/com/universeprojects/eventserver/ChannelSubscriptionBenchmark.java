@@ -0,0 +1,70 @@
+package com.universeprojects.eventserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscribe/unsubscribe throughput of the ChannelService while many threads change subscriptions
+ * of shared channels at the same time, as it happens during reconnect-storms.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ChannelSubscriptionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        private final AtomicInteger userCounter = new AtomicInteger();
+        private ChannelService channelService;
+
+        @Setup
+        public void setup() {
+            final EventServerVerticle verticle = new EventServerVerticle();
+            verticle.messageRouter = new BenchmarkMessageRouter();
+            verticle.historyPolicies = new HistoryPolicies(null, 100, 0);
+            verticle.historyCache = new HistoryCache(null, verticle.historyPolicies, false, 0, 0, 0);
+            channelService = new ChannelService(verticle);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private User user;
+        private List<String> channels;
+
+        @Setup
+        public void setup(Registry registry) {
+            final int index = registry.userCounter.incrementAndGet();
+            user = new User("user" + index);
+            channels = new ArrayList<>();
+            channels.add("GLOBAL");
+            channels.add("public");
+            channels.add("group." + (index % 4));
+            channels.add("private." + index);
+        }
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe(Registry registry, Connection connection) {
+        registry.channelService.updateSubscriptions(connection.user, connection.channels);
+        registry.channelService.updateSubscriptions(connection.user, Collections.emptyList());
+    }
+}
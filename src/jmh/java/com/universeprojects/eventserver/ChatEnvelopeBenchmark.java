@@ -0,0 +1,54 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatEnvelopeBenchmark {
+
+    @Param({"1", "100"})
+    public int messageCount;
+
+    private ChatEnvelope envelope;
+
+    @Setup
+    public void setup() {
+        final List<ChatMessage> messages = BenchmarkMessages.createMessages(messageCount);
+        envelope = ChatEnvelope.forMessages(messages);
+        envelope.toBuffer();
+    }
+
+    @Benchmark
+    public JsonObject toJson() {
+        return envelope.toJson();
+    }
+
+    @Benchmark
+    public Buffer toJsonBuffer() {
+        return envelope.toJson().toBuffer();
+    }
+
+    @Benchmark
+    public Buffer toPreEncodedBuffer() {
+        return envelope.toBuffer();
+    }
+}
@@ -0,0 +1,57 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatMessageCodecBenchmark {
+
+    @Param({"JSON", "BINARY"})
+    public EventServerVerticle.WireFormat wireFormat;
+
+    private final ChatMessageCodec codec = ChatMessageCodec.INSTANCE;
+    private ChatMessage message;
+    private Buffer encoded;
+
+    @Setup
+    public void setup() {
+        codec.setWireFormat(wireFormat);
+        message = BenchmarkMessages.createMessage(1);
+        encoded = Buffer.buffer();
+        codec.encodeToWire(encoded, message);
+    }
+
+    @Benchmark
+    public Buffer encode() {
+        final Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, BenchmarkMessages.createMessage(1));
+        return buffer;
+    }
+
+    @Benchmark
+    public ChatMessage decode() {
+        return codec.decodeFromWire(0, encoded);
+    }
+
+    @Benchmark
+    public ChatMessage transform() {
+        return codec.transform(message);
+    }
+}
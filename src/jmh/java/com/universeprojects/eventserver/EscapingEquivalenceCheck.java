@@ -0,0 +1,45 @@
+package com.universeprojects.eventserver;
+
+import java.util.Random;
+
+/**
+ * Checks that the single-pass EscapingService produces the same output as the previous regex-implementation for
+ * randomly generated markup. Runs with the gradle 'escapingCheck' task, which is part of 'check'.
+ */
+public class EscapingEquivalenceCheck {
+    private static final int SAMPLES = 100000;
+    /**
+     * Fragments the random markup is built from. Unterminated tags are left out, because the regex-implementation
+     * can form new tags by joining them with the text around a replaced element, which the single pass doesn't do.
+     */
+    private static final String[] FRAGMENTS = {
+        "text", " ", "more text", ">", "\"", "|", "!", "!!", "!!l!!", "!!g!!",
+        "<b>", "</b>", "< b >", "</b >", "</ b>", "<B>", "<bb>",
+        "<strong>", "</strong>", "<stron>", "<i>", "</i>", "< i\n>", "<em>", "</em>", "</em\t>", "<u>", "</u>",
+        "<a href=\"http://example.com\">", "<a  href=\"\" >", "<a href=\"a<b\">", "<a>", "</a>", "</a >",
+        "<br>", "<br/>", "< br />"
+    };
+
+    public static void main(String[] args) {
+        check(false);
+        check(true);
+        System.out.println("EscapingService matches the regex-implementation for " + SAMPLES + " samples");
+    }
+
+    public static void check(boolean translateToMarkdown) {
+        final Random random = new Random(42);
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            final StringBuilder builder = new StringBuilder();
+            final int fragments = random.nextInt(12);
+            for (int i = 0; i < fragments; i++) {
+                builder.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            final String markup = builder.toString();
+            final String expected = RegexEscapingService.INSTANCE.escapeHtml(markup, translateToMarkdown);
+            final String actual = EscapingService.INSTANCE.escapeHtml(markup, translateToMarkdown);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("Escaping of '" + markup + "' (markdown: " + translateToMarkdown + ") returned '" + actual + "' instead of '" + expected + "'");
+            }
+        }
+    }
+}
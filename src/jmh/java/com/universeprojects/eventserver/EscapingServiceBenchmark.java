@@ -0,0 +1,58 @@
+package com.universeprojects.eventserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single-pass EscapingService with the previous regex-implementation. Run with "-prof gc" to see the
+ * allocations per call.
+ * Before measuring, the setup runs the {@link EscapingEquivalenceCheck}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapingServiceBenchmark {
+    public enum Implementation {
+        SINGLE_PASS, REGEX
+    }
+
+    @Param({"SINGLE_PASS", "REGEX"})
+    public Implementation implementation;
+
+    @Param({"false", "true"})
+    public boolean translateToMarkdown;
+
+    @Param({
+        "Just some plain text without any markup at all",
+        "Some <b>bold</b>, <i>italic</i> and <a href=\"http://example.com\">linked</a> text<br/>with a break"
+    })
+    public String text;
+
+    @Setup(Level.Trial)
+    public void checkImplementations() {
+        EscapingEquivalenceCheck.check(translateToMarkdown);
+    }
+
+    @Benchmark
+    public String escapeHtml() {
+        if (implementation == Implementation.REGEX) {
+            return RegexEscapingService.INSTANCE.escapeHtml(text, translateToMarkdown);
+        }
+        return EscapingService.INSTANCE.escapeHtml(text, translateToMarkdown);
+    }
+}
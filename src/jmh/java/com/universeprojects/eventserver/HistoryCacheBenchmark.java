@@ -0,0 +1,79 @@
+package com.universeprojects.eventserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fetches from the history-cache while the channel receives messages, as happens when many clients reconnect to a
+ * busy channel. The store behind the cache answers immediately, it is only used for the initial load.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryCacheBenchmark {
+    private static final int HISTORY_SIZE = 100;
+
+    private HistoryCache historyCache;
+    private List<ChatMessage> received;
+    private Set<String> channels;
+
+    @Setup
+    public void setup() {
+        final List<ChatMessage> stored = BenchmarkMessages.createMessages(HISTORY_SIZE);
+        historyCache = new HistoryCache(new HistoryService() {
+            @Override
+            public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
+            }
+
+            @Override
+            public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+                final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+                for (String channel : channels) {
+                    result.put(channel, stored);
+                }
+                resultHandler.accept(result);
+            }
+        }, new HistoryPolicies(null, HISTORY_SIZE, 0), true, 100, 64 * 1024 * 1024, 10000);
+        historyCache.channelSubscribed(BenchmarkMessages.CHANNEL);
+        received = Collections.singletonList(BenchmarkMessages.createMessage(HISTORY_SIZE));
+        channels = Collections.singleton(BenchmarkMessages.CHANNEL);
+        historyCache.fetchHistoryMessages(channels, HISTORY_SIZE, (channel, messages) -> {
+        });
+    }
+
+    @Benchmark
+    @Group("reconnect")
+    @GroupThreads(7)
+    public void fetch(Blackhole blackhole) {
+        historyCache.fetchHistoryMessages(channels, HISTORY_SIZE, (channel, messages) -> blackhole.consume(messages));
+    }
+
+    @Benchmark
+    @Group("reconnect")
+    @GroupThreads(1)
+    public void receive() {
+        historyCache.channelMessagesReceived(BenchmarkMessages.CHANNEL, received);
+    }
+}
@@ -0,0 +1,198 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Store and fetch of channel-history against an embedded single-node Hazelcast, an in-process Redis stand-in and
+ * memory-mapped files in a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryServiceBenchmark {
+    private static final int HISTORY_SIZE = 100;
+    private static final long FETCH_TIMEOUT = 100;
+    private static final long CLUSTER_START_TIMEOUT = 60;
+    private static final int GROUP_CHANNELS = 20;
+    private static final int GROUP_HISTORY_SIZE = 10;
+
+    public enum Backend {
+        HAZELCAST, REDIS, REDIS_STREAM, MAPPED
+    }
+
+    @Param({"HAZELCAST", "REDIS", "REDIS_STREAM", "MAPPED"})
+    public Backend backend;
+
+    private Vertx vertx;
+    private InMemoryRedisServer redisServer;
+    private File mappedDirectory;
+    private HistoryService historyService;
+    private int counter = 0;
+    private final Set<String> groupChannels = new LinkedHashSet<>();
+
+    @Setup
+    public void setup() {
+        if (backend == Backend.HAZELCAST) {
+            vertx = startClusteredVertx();
+            final EventServerVerticle verticle = new EventServerVerticle();
+            verticle.init(vertx, vertx.getOrCreateContext());
+            verticle.sharedDataService = new SharedDataService(vertx.sharedData());
+            verticle.historyPolicies = new HistoryPolicies(null, HISTORY_SIZE, 0);
+            historyService = new HazelcastHistoryService(verticle);
+        } else if (backend == Backend.MAPPED) {
+            vertx = Vertx.vertx();
+            final EventServerVerticle verticle = new EventServerVerticle();
+            verticle.init(vertx, vertx.getOrCreateContext());
+            try {
+                mappedDirectory = Files.createTempDirectory("history").toFile();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            historyService = new MappedHistoryService(verticle, mappedDirectory, 1024 * 1024, 60 * 60, 1000);
+        } else {
+            vertx = Vertx.vertx();
+            redisServer = new InMemoryRedisServer(vertx);
+            final int port = redisServer.start();
+            System.setProperty(RedisHistoryService.CONFIG_REDIS_HOST, "localhost");
+            System.setProperty(RedisHistoryService.CONFIG_REDIS_PORT, Integer.toString(port));
+            final HistoryPolicies policies = new HistoryPolicies(null, HISTORY_SIZE, 0);
+            historyService = backend == Backend.REDIS_STREAM ? new RedisStreamHistoryService(policies) : new RedisHistoryService(policies);
+        }
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            store();
+        }
+        for (int channel = 0; channel < GROUP_CHANNELS; channel++) {
+            groupChannels.add("group." + channel);
+            historyService.storeChatHistory("group." + channel, HISTORY_SIZE, BenchmarkMessages.createMessages(GROUP_HISTORY_SIZE));
+        }
+        //Stores are asynchronous, so wait until all group-histories can be fetched
+        while (fetchGroups().values().stream().filter((messages) -> messages.size() == GROUP_HISTORY_SIZE).count() < GROUP_CHANNELS) {
+            Thread.yield();
+        }
+    }
+
+    private Vertx startClusteredVertx() {
+        final HazelcastClusterManager clusterManager = new HazelcastClusterManager();
+        final com.hazelcast.config.Config hazelcastConfig = clusterManager.loadConfig();
+        hazelcastConfig.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcastConfig.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+        clusterManager.setConfig(hazelcastConfig);
+        final VertxOptions options = new VertxOptions()
+            .setClustered(true)
+            .setClusterHost("127.0.0.1")
+            .setClusterManager(clusterManager);
+        final CompletableFuture<Vertx> future = new CompletableFuture<>();
+        Vertx.clusteredVertx(options, (result) -> {
+            if (result.succeeded()) {
+                future.complete(result.result());
+            } else {
+                future.completeExceptionally(result.cause());
+            }
+        });
+        try {
+            return future.get(CLUSTER_START_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            throw new IllegalStateException("Failed to start clustered vertx", ex);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+        if (mappedDirectory != null) {
+            delete(mappedDirectory);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        vertx.close((ignored) -> future.complete(null));
+        future.join();
+    }
+
+    private void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Stores a message and waits until a fetch returns it as the newest entry.
+     */
+    @Benchmark
+    public List<ChatMessage> store() {
+        final ChatMessage message = BenchmarkMessages.createMessage(counter++);
+        historyService.storeChatHistory(BenchmarkMessages.CHANNEL, HISTORY_SIZE, Collections.singletonList(message));
+        while (true) {
+            final List<ChatMessage> messages = fetch();
+            if (!messages.isEmpty() && message.timestamp.equals(messages.get(messages.size() - 1).timestamp)) {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * Fetches the history of the channel. The services don't call back if the fetch fails, so this gives up
+     * after a short while and returns an empty list.
+     */
+    @Benchmark
+    public List<ChatMessage> fetch() {
+        final CompletableFuture<List<ChatMessage>> future = new CompletableFuture<>();
+        historyService.fetchHistoryMessages(Collections.singleton(BenchmarkMessages.CHANNEL), HISTORY_SIZE,
+            (channel, messages) -> future.complete(messages));
+        try {
+            return future.get(FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Fetches the history of a user in many group-channels, as on connect.
+     */
+    @Benchmark
+    public Map<String, List<ChatMessage>> fetchGroups() {
+        final CompletableFuture<Map<String, List<ChatMessage>>> future = new CompletableFuture<>();
+        historyService.fetchAllHistoryMessages(groupChannels, HISTORY_SIZE, future::complete);
+        try {
+            return future.get(FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal in-process stand-in for Redis. Understands just enough of RESP and the list- and stream-commands
+ * the RedisHistoryService and RedisStreamHistoryService use to run them without an external server.
+ */
+public class InMemoryRedisServer {
+    private final Vertx vertx;
+    private final Map<String, LinkedList<byte[]>> lists = new ConcurrentHashMap<>();
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private NetServer server;
+
+    public InMemoryRedisServer(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    public int start() {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        server = vertx.createNetServer().connectHandler(this::handleConnection).listen(0, "localhost", (result) -> {
+            if (result.succeeded()) {
+                future.complete(result.result().actualPort());
+            } else {
+                future.completeExceptionally(result.cause());
+            }
+        });
+        return future.join();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void handleConnection(NetSocket socket) {
+        final Connection connection = new Connection(socket);
+        socket.handler(connection::handleData);
+    }
+
+    private class Connection {
+        private final NetSocket socket;
+        private Buffer pending = Buffer.buffer();
+        private List<List<byte[]>> transaction;
+
+        private Connection(NetSocket socket) {
+            this.socket = socket;
+        }
+
+        private void handleData(Buffer data) {
+            pending.appendBuffer(data);
+            int pos = 0;
+            while (true) {
+                final List<byte[]> command = new ArrayList<>();
+                final int next = parseCommand(pos, command);
+                if (next < 0) {
+                    break;
+                }
+                pos = next;
+                socket.write(handleCommand(command));
+            }
+            pending = pending.getBuffer(pos, pending.length());
+        }
+
+        private int parseCommand(int pos, List<byte[]> command) {
+            final int countEnd = findLineEnd(pos);
+            if (countEnd < 0) {
+                return -1;
+            }
+            final int count = Integer.parseInt(pending.getString(pos + 1, countEnd));
+            pos = countEnd + 2;
+            for (int i = 0; i < count; i++) {
+                final int lengthEnd = findLineEnd(pos);
+                if (lengthEnd < 0) {
+                    return -1;
+                }
+                final int length = Integer.parseInt(pending.getString(pos + 1, lengthEnd));
+                pos = lengthEnd + 2;
+                if (pending.length() < pos + length + 2) {
+                    return -1;
+                }
+                command.add(pending.getBytes(pos, pos + length));
+                pos += length + 2;
+            }
+            return pos;
+        }
+
+        private int findLineEnd(int pos) {
+            for (int i = pos; i < pending.length() - 1; i++) {
+                if (pending.getByte(i) == '\r' && pending.getByte(i + 1) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Buffer handleCommand(List<byte[]> command) {
+            final String name = new String(command.get(0), StandardCharsets.UTF_8).toUpperCase();
+            switch (name) {
+                case "MULTI":
+                    transaction = new ArrayList<>();
+                    return simple("OK");
+                case "EXEC":
+                    final List<List<byte[]>> commands = transaction != null ? transaction : new ArrayList<>();
+                    transaction = null;
+                    final Buffer result = Buffer.buffer("*" + commands.size() + "\r\n");
+                    for (List<byte[]> queued : commands) {
+                        result.appendBuffer(execute(queued));
+                    }
+                    return result;
+                default:
+                    if (transaction != null) {
+                        transaction.add(command);
+                        return simple("QUEUED");
+                    }
+                    return execute(command);
+            }
+        }
+    }
+
+    private Buffer execute(List<byte[]> command) {
+        final String name = new String(command.get(0), StandardCharsets.UTF_8).toUpperCase();
+        switch (name) {
+            case "PING":
+                return simple("PONG");
+            case "LPUSH": {
+                final LinkedList<byte[]> list = lists.computeIfAbsent(key(command), (ignored) -> new LinkedList<>());
+                synchronized (list) {
+                    for (int i = 2; i < command.size(); i++) {
+                        list.addFirst(command.get(i));
+                    }
+                    return integer(list.size());
+                }
+            }
+            case "LTRIM": {
+                final LinkedList<byte[]> list = lists.get(key(command));
+                if (list != null) {
+                    synchronized (list) {
+                        final int stop = normalize(Integer.parseInt(argument(command, 3)), list.size());
+                        while (list.size() > stop + 1) {
+                            list.removeLast();
+                        }
+                    }
+                }
+                return simple("OK");
+            }
+            case "LRANGE": {
+                final LinkedList<byte[]> list = lists.get(key(command));
+                final List<byte[]> range = new ArrayList<>();
+                if (list != null) {
+                    synchronized (list) {
+                        final int start = normalize(Integer.parseInt(argument(command, 2)), list.size());
+                        final int stop = normalize(Integer.parseInt(argument(command, 3)), list.size());
+                        for (int i = Math.max(start, 0); i <= stop && i < list.size(); i++) {
+                            range.add(list.get(i));
+                        }
+                    }
+                }
+                final Buffer result = Buffer.buffer("*" + range.size() + "\r\n");
+                for (byte[] value : range) {
+                    result.appendString("$" + value.length + "\r\n").appendBytes(value).appendString("\r\n");
+                }
+                return result;
+            }
+            case "XADD": {
+                final Stream stream = streams.computeIfAbsent(key(command), (ignored) -> new Stream());
+                int index = 2;
+                long maxLength = Long.MAX_VALUE;
+                if (argument(command, index).equalsIgnoreCase("MAXLEN")) {
+                    index++;
+                    if (argument(command, index).equals("~")) {
+                        index++;
+                    }
+                    maxLength = Long.parseLong(argument(command, index++));
+                }
+                index++; //only "*" is supported as ID
+                synchronized (stream) {
+                    final String id = stream.nextId();
+                    stream.entries.add(new StreamEntry(id, command.subList(index, command.size())));
+                    while (stream.entries.size() > maxLength) {
+                        stream.entries.removeFirst();
+                    }
+                    return bulk(id.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            case "XRANGE":
+            case "XREVRANGE": {
+                final boolean reverse = name.equals("XREVRANGE");
+                final Stream stream = streams.get(key(command));
+                final String start = argument(command, reverse ? 3 : 2);
+                final String end = argument(command, reverse ? 2 : 3);
+                final int count = command.size() > 5 ? Integer.parseInt(argument(command, 5)) : Integer.MAX_VALUE;
+                final List<StreamEntry> range = new ArrayList<>();
+                if (stream != null) {
+                    synchronized (stream) {
+                        final List<StreamEntry> entries = new ArrayList<>(stream.entries);
+                        if (reverse) {
+                            Collections.reverse(entries);
+                        }
+                        for (StreamEntry entry : entries) {
+                            if (range.size() < count && compareIds(entry.id, start, 0) >= 0 && compareIds(entry.id, end, 1) <= 0) {
+                                range.add(entry);
+                            }
+                        }
+                    }
+                }
+                final Buffer result = Buffer.buffer("*" + range.size() + "\r\n");
+                for (StreamEntry entry : range) {
+                    result.appendString("*2\r\n").appendBuffer(bulk(entry.id.getBytes(StandardCharsets.UTF_8)));
+                    result.appendString("*" + entry.fields.size() + "\r\n");
+                    for (byte[] field : entry.fields) {
+                        result.appendBuffer(bulk(field));
+                    }
+                }
+                return result;
+            }
+            case "EXPIRE":
+                return integer(lists.containsKey(key(command)) || streams.containsKey(key(command)) ? 1 : 0);
+            case "DEL":
+                return integer(lists.remove(key(command)) != null || streams.remove(key(command)) != null ? 1 : 0);
+            default:
+                return Buffer.buffer("-ERR unknown command '" + name + "'\r\n");
+        }
+    }
+
+    /**
+     * Compares a stream-ID with a range-boundary. "-" and "+" are the smallest and largest ID, a boundary without
+     * sequence-number stands for the first (bound 0) or last (bound 1) ID of that millisecond.
+     */
+    private static int compareIds(String id, String boundary, int bound) {
+        if (boundary.equals("-")) {
+            return 1;
+        }
+        if (boundary.equals("+")) {
+            return -1;
+        }
+        final long[] parsedId = parseId(id, 0);
+        final long[] parsedBoundary = parseId(boundary, bound == 0 ? 0 : Long.MAX_VALUE);
+        final int compared = Long.compare(parsedId[0], parsedBoundary[0]);
+        return compared != 0 ? compared : Long.compare(parsedId[1], parsedBoundary[1]);
+    }
+
+    private static long[] parseId(String id, long defaultSequence) {
+        final int separator = id.indexOf('-');
+        if (separator < 0) {
+            return new long[]{Long.parseLong(id), defaultSequence};
+        }
+        return new long[]{Long.parseLong(id.substring(0, separator)), Long.parseLong(id.substring(separator + 1))};
+    }
+
+    private static Buffer bulk(byte[] value) {
+        return Buffer.buffer("$" + value.length + "\r\n").appendBytes(value).appendString("\r\n");
+    }
+
+    private static class Stream {
+        private final LinkedList<StreamEntry> entries = new LinkedList<>();
+        private long lastMillis = 0;
+        private long lastSequence = 0;
+
+        private String nextId() {
+            final long millis = System.currentTimeMillis();
+            if (millis > lastMillis) {
+                lastMillis = millis;
+                lastSequence = 0;
+            } else {
+                lastSequence++;
+            }
+            return lastMillis + "-" + lastSequence;
+        }
+    }
+
+    private static class StreamEntry {
+        private final String id;
+        private final List<byte[]> fields;
+
+        private StreamEntry(String id, List<byte[]> fields) {
+            this.id = id;
+            this.fields = new ArrayList<>(fields);
+        }
+    }
+
+    private static int normalize(int index, int size) {
+        return index < 0 ? size + index : index;
+    }
+
+    private static String key(List<byte[]> command) {
+        return argument(command, 1);
+    }
+
+    private static String argument(List<byte[]> command, int index) {
+        return new String(command.get(index), StandardCharsets.UTF_8);
+    }
+
+    private static Buffer simple(String value) {
+        return Buffer.buffer("+" + value + "\r\n");
+    }
+
+    private static Buffer integer(long value) {
+        return Buffer.buffer(":" + value + "\r\n");
+    }
+}
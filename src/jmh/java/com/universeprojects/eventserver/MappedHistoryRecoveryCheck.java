@@ -0,0 +1,199 @@
+package com.universeprojects.eventserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a MappedHistoryLog whose newest record was torn by a crash recovers the records before it and keeps
+ * appending after them, that pages are ordered by sequence-number when records arrived out of order, and that a
+ * replacement interrupted by a crash is completed or discarded. Runs with the gradle 'mappedHistoryCheck' task, which is part of 'check'.
+ */
+public class MappedHistoryRecoveryCheck {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    public static void main(String[] args) throws IOException {
+        //A payload that doesn't match its checksum, as left by a crash while the page was partly written
+        check((file, position) -> {
+            file.seek(position + HEADER_SIZE + 2);
+            final int b = file.read();
+            file.seek(position + HEADER_SIZE + 2);
+            file.write(b ^ 0xFF);
+        });
+        //A length that runs past the end of the segment
+        check((file, position) -> {
+            file.seek(position);
+            file.writeInt(SEGMENT_SIZE);
+        });
+        //A negative length
+        check((file, position) -> {
+            file.seek(position);
+            file.writeInt(-5);
+        });
+        checkReplace();
+        System.out.println("MappedHistoryLog recovers from torn records and interrupted replacements");
+    }
+
+    private static void checkReplace() throws IOException {
+        final File parent = Files.createTempDirectory("history-replace").toFile();
+        final File directory = new File(parent, "log");
+        final File replacement = new File(parent, "log" + MappedHistoryLog.REPLACEMENT_SUFFIX);
+        final File replaced = new File(parent, "log" + MappedHistoryLog.REPLACED_SUFFIX);
+        try {
+            final MappedHistoryLog log = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            log.open();
+            log.append(Arrays.asList(message(1), message(2)), System.currentTimeMillis(), 100);
+            log.replace(records(1, 2, 3), 100);
+            expect(log, 1, 2, 3);
+            log.close();
+            final MappedHistoryLog replacedLog = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            replacedLog.open();
+            expect(replacedLog, 1, 2, 3);
+            replacedLog.close();
+
+            //A crash between renaming the old directory and the replacement
+            write(replacement, 1, 2, 3, 4);
+            Files.move(directory.toPath(), replaced.toPath());
+            final MappedHistoryLog completed = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            completed.open();
+            expect(completed, 1, 2, 3, 4);
+            completed.close();
+
+            //A crash while the replacement is written
+            write(replacement, 1);
+            final MappedHistoryLog discarded = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            discarded.open();
+            expect(discarded, 1, 2, 3, 4);
+            discarded.delete();
+            discarded.close();
+            if (replacement.exists() || replaced.exists()) {
+                throw new IllegalStateException("The replacement directories were not deleted");
+            }
+        } finally {
+            for (File child : new File[]{directory, replacement, replaced}) {
+                deleteAll(child);
+            }
+            deleteAll(parent);
+        }
+    }
+
+    private static void write(File directory, long... sequences) throws IOException {
+        final MappedHistoryLog log = new MappedHistoryLog(directory, SEGMENT_SIZE);
+        log.open();
+        for (long sequence : sequences) {
+            log.append(Collections.singletonList(message(sequence)), System.currentTimeMillis(), 100);
+        }
+        log.close();
+    }
+
+    private static List<MappedHistoryLog.Record> records(long... sequences) {
+        final List<MappedHistoryLog.Record> records = new ArrayList<>();
+        for (long sequence : sequences) {
+            records.add(new MappedHistoryLog.Record(message(sequence), System.currentTimeMillis()));
+        }
+        return records;
+    }
+
+    private static void check(Corruption corruption) throws IOException {
+        final File directory = Files.createTempDirectory("history-recovery").toFile();
+        try {
+            final MappedHistoryLog log = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            log.open();
+            for (long sequence = 1; sequence <= 3; sequence++) {
+                log.append(Collections.singletonList(message(sequence)), System.currentTimeMillis(), 100);
+            }
+            log.close();
+
+            final File[] segments = directory.listFiles();
+            if (segments == null || segments.length != 1) {
+                throw new IllegalStateException("Expected a single segment in " + directory);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+                long position = 0;
+                for (int record = 0; record < 2; record++) {
+                    file.seek(position);
+                    position += HEADER_SIZE + file.readInt();
+                }
+                corruption.apply(file, position);
+            }
+
+            final MappedHistoryLog recovered = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            recovered.open();
+            expect(recovered, 1, 2);
+            recovered.append(Collections.singletonList(message(4)), System.currentTimeMillis(), 100);
+            expect(recovered, 1, 2, 4);
+            recovered.close();
+
+            final MappedHistoryLog reopened = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            reopened.open();
+            expect(reopened, 1, 2, 4);
+            if (!reopened.readPage(null, 2L, 10, 0).get(0).getSequence().equals(4L)) {
+                throw new IllegalStateException("The page after 2 doesn't start with 4");
+            }
+            reopened.append(Collections.singletonList(message(6)), System.currentTimeMillis(), 100);
+            reopened.append(Collections.singletonList(message(5)), System.currentTimeMillis(), 100);
+            expectPages(reopened);
+            reopened.close();
+
+            final MappedHistoryLog unordered = new MappedHistoryLog(directory, SEGMENT_SIZE);
+            unordered.open();
+            expectPages(unordered);
+            unordered.delete();
+            unordered.close();
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    private static void deleteAll(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    private static ChatMessage message(long sequence) {
+        return new ChatMessage("user", "User", "channel", "message " + sequence, System.currentTimeMillis(), null, null).withSequence(sequence);
+    }
+
+    private static void expectPages(MappedHistoryLog log) {
+        expect(log.read(100, 0), 1, 2, 4, 5, 6);
+        expect(log.read(2, 0), 5, 6);
+        expect(log.readPage(null, 4L, 10, 0), 5, 6);
+        expect(log.readPage(6L, null, 1, 0), 5);
+        expect(log.readPage(6L, 1L, 2, 0), 2, 4);
+    }
+
+    private static void expect(MappedHistoryLog log, long... sequences) {
+        expect(log.read(100, 0), sequences);
+    }
+
+    private static void expect(List<ChatMessage> messages, long... sequences) {
+        final List<Long> actual = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            actual.add(message.getSequence());
+        }
+        final List<Long> expected = new ArrayList<>();
+        for (long sequence : sequences) {
+            expected.add(sequence);
+        }
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("Recovered " + actual + " instead of " + expected);
+        }
+    }
+
+    private interface Corruption {
+        void apply(RandomAccessFile file, long position) throws IOException;
+    }
+}
@@ -0,0 +1,82 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A simulated client that is connected to the raw websocket-endpoint of SockJS on one of the nodes.
+ * Measures the delivery-latency of every load-test message it receives.
+ */
+public class LoadClient {
+    public static final String DATA_SENT_AT = "loadtestSentAt";
+    public static final String DATA_NODE = "loadtestNode";
+
+    public final String userId;
+    public final int node;
+    private final LatencyHistogram localLatency;
+    private final LatencyHistogram remoteLatency;
+    private final LongAdder received;
+    private volatile WebSocket webSocket;
+    private volatile boolean receivedAny = false;
+
+    public LoadClient(String userId, int node, LatencyHistogram localLatency, LatencyHistogram remoteLatency, LongAdder received) {
+        this.userId = userId;
+        this.node = node;
+        this.localLatency = localLatency;
+        this.remoteLatency = remoteLatency;
+        this.received = received;
+    }
+
+    public void connect(HttpClient client, int port, Handler<Throwable> handler) {
+        final String uri = "/socket/websocket?" + SockJSSocketHandler.PARAM_TOKEN + "=" + userId +
+            "&" + SockJSSocketHandler.PARAM_FETCH_OLD_MESSAGES + "=false";
+        client.websocket(port, "localhost", uri, (webSocket) -> {
+            this.webSocket = webSocket;
+            webSocket.handler(this::onMessage);
+            handler.handle(null);
+        }, handler);
+    }
+
+    private void onMessage(Buffer buffer) {
+        final long now = System.nanoTime();
+        final JsonArray messages = buffer.toJsonObject().getJsonArray("messages");
+        if (messages == null) {
+            return;
+        }
+        receivedAny = true;
+        for (Object messageObj : messages) {
+            final JsonObject additionalData = ((JsonObject) messageObj).getJsonObject("additionalData");
+            if (additionalData == null || !additionalData.containsKey(DATA_SENT_AT)) {
+                continue;
+            }
+            final long latency = now - additionalData.getLong(DATA_SENT_AT);
+            if (additionalData.getInteger(DATA_NODE) == node) {
+                localLatency.recordNanos(latency);
+            } else {
+                remoteLatency.recordNanos(latency);
+            }
+            received.increment();
+        }
+    }
+
+    public boolean hasReceivedAny() {
+        return receivedAny;
+    }
+
+    public void close() {
+        final WebSocket webSocket = this.webSocket;
+        if (webSocket != null) {
+            try {
+                webSocket.close();
+            } catch (IllegalStateException ignored) {
+                //Socket already closed
+            }
+        }
+    }
+}
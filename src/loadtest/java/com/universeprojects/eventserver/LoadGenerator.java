@@ -0,0 +1,294 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test: starts one or more clustered EventServerVerticles in this JVM together with a stub of the
+ * auth-endpoint, connects websocket-clients to them and drives /send at a fixed rate.
+ * Reports the delivery-latency (split into clients on the sending node and clients on other nodes), the
+ * throughput and the heap used.
+ */
+public class LoadGenerator {
+    public static final String CONFIG_NODES = "loadtest_nodes";
+    public static final String CONFIG_CLIENTS = "loadtest_clients";
+    public static final String CONFIG_CHANNELS = "loadtest_channels";
+    public static final String CONFIG_RATE = "loadtest_rate";
+    public static final String CONFIG_BATCH_SIZE = "loadtest_batch_size";
+    public static final String CONFIG_WARMUP = "loadtest_warmup";
+    public static final String CONFIG_DURATION = "loadtest_duration";
+    public static final String CONFIG_BASE_PORT = "loadtest_base_port";
+    public static final String CONFIG_CONNECT_CONCURRENCY = "loadtest_connect_concurrency";
+
+    private static final String CHANNEL_PREFIX = "load.";
+    private static final long TICK_INTERVAL = 10;
+    private static final long READY_TIMEOUT = 60000;
+
+    private final int nodeCount = Config.getInt(CONFIG_NODES, 2);
+    private final int clientCount = Config.getInt(CONFIG_CLIENTS, 1000);
+    private final int channelCount = Config.getInt(CONFIG_CHANNELS, 10);
+    private final int rate = Config.getInt(CONFIG_RATE, 100);
+    private final int batchSize = Config.getInt(CONFIG_BATCH_SIZE, 1);
+    private final int warmup = Config.getInt(CONFIG_WARMUP, 5);
+    private final int duration = Config.getInt(CONFIG_DURATION, 30);
+    private final int basePort = Config.getInt(CONFIG_BASE_PORT, 7000);
+    private final int connectConcurrency = Config.getInt(CONFIG_CONNECT_CONCURRENCY, 100);
+
+    private final LatencyHistogram localLatency = new LatencyHistogram();
+    private final LatencyHistogram remoteLatency = new LatencyHistogram();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final List<Vertx> nodes = new ArrayList<>();
+    private final List<LoadClient> clients = new ArrayList<>();
+    private Vertx clientVertx;
+    private HttpClient httpClient;
+    private HttpClient webSocketClient;
+    private StubAuthServer authServer;
+
+    public static void main(String[] args) throws Exception {
+        //See Main
+        System.clearProperty("io.netty.machineId");
+        try {
+            new LoadGenerator().run();
+        } finally {
+            System.exit(0);
+        }
+    }
+
+    public void run() throws Exception {
+        clientVertx = Vertx.vertx();
+        httpClient = clientVertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(nodeCount * 20));
+        //Websockets hold on to their pooled connection, so they need a pool that can fit all of them
+        webSocketClient = clientVertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(clientCount));
+        final long heapBaseline = usedHeap();
+
+        authServer = new StubAuthServer(clientVertx, "/chatAuth", this::channelsForUser);
+        final int authPort = authServer.start(0);
+        System.setProperty(AuthService.CONFIG_REMOTE_HOST, "localhost");
+        System.setProperty(AuthService.CONFIG_REMOTE_PORT, Integer.toString(authPort));
+        System.setProperty(AuthService.CONFIG_AUTH_ENDPOINT, "/chatAuth");
+
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add(startNode(basePort + i));
+        }
+        final long heapNodes = usedHeap();
+        print("Started %d node(s)", nodeCount);
+
+        connectClients();
+        awaitSubscriptions();
+        final long heapClients = usedHeap();
+        print("Connected %d clients to %d channels", clientCount, channelCount);
+
+        final AtomicLong sequence = new AtomicLong();
+        final long start = System.nanoTime();
+        final long timerId = clientVertx.setPeriodic(TICK_INTERVAL, (ignored) -> {
+            final long due = (System.nanoTime() - start) * rate / TimeUnit.SECONDS.toNanos(1);
+            while (sequence.get() + batchSize <= due) {
+                sendBatch(sequence.getAndAdd(batchSize));
+            }
+        });
+
+        print("Warming up for %ds at %d messages/s", warmup, rate);
+        TimeUnit.SECONDS.sleep(warmup);
+        localLatency.reset();
+        remoteLatency.reset();
+        received.reset();
+        sent.reset();
+        sendErrors.reset();
+        print("Measuring for %ds", duration);
+        final long measureStart = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        clientVertx.cancelTimer(timerId);
+        final double seconds = (System.nanoTime() - measureStart) / (double) TimeUnit.SECONDS.toNanos(1);
+        TimeUnit.SECONDS.sleep(2);
+        final long heapEnd = usedHeap();
+
+        print("");
+        print("Sent:          %d messages (%.1f/s), %d failed requests", sent.sum(), sent.sum() / seconds, sendErrors.sum());
+        print("Delivered:     %d messages (%.1f/s)", received.sum(), received.sum() / seconds);
+        printLatency("Local nodes: ", localLatency);
+        if (nodeCount > 1) {
+            printLatency("Remote nodes:", remoteLatency);
+        }
+        print("Heap used:     baseline %s, nodes %s, clients %s, end %s (%d nodes share this JVM)",
+            megabytes(heapBaseline), megabytes(heapNodes), megabytes(heapClients), megabytes(heapEnd), nodeCount);
+
+        clients.forEach(LoadClient::close);
+        authServer.stop();
+    }
+
+    private Vertx startNode(int port) {
+        final HazelcastClusterManager clusterManager = new HazelcastClusterManager();
+        final com.hazelcast.config.Config hazelcastConfig = clusterManager.loadConfig();
+        hazelcastConfig.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        hazelcastConfig.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcastConfig.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        clusterManager.setConfig(hazelcastConfig);
+        final VertxOptions options = new VertxOptions()
+            .setClustered(true)
+            .setClusterHost("127.0.0.1")
+            .setClusterManager(clusterManager);
+
+        final CompletableFuture<Vertx> future = new CompletableFuture<>();
+        Vertx.clusteredVertx(options, (result) -> {
+            if (result.succeeded()) {
+                future.complete(result.result());
+            } else {
+                future.completeExceptionally(result.cause());
+            }
+        });
+        final Vertx vertx = future.join();
+
+        //The verticle reads its port from the config when it starts
+        System.setProperty(EventServerVerticle.CONFIG_PORT, Integer.toString(port));
+        final CompletableFuture<String> deployed = new CompletableFuture<>();
+        vertx.deployVerticle(new EventServerVerticle(), (result) -> {
+            if (result.succeeded()) {
+                deployed.complete(result.result());
+            } else {
+                deployed.completeExceptionally(result.cause());
+            }
+        });
+        deployed.join();
+        awaitHealthy(port);
+        return vertx;
+    }
+
+    private void awaitHealthy(int port) {
+        final long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            final CompletableFuture<Integer> status = new CompletableFuture<>();
+            httpClient.get(port, "localhost", "/healthcheck", (response) -> status.complete(response.statusCode()))
+                .exceptionHandler((ignored) -> status.complete(-1))
+                .end();
+            if (status.join() == 200) {
+                return;
+            }
+            sleep(100);
+        }
+        throw new IllegalStateException("Node on port " + port + " did not become healthy");
+    }
+
+    private void connectClients() throws InterruptedException {
+        final Semaphore semaphore = new Semaphore(connectConcurrency);
+        final CountDownLatch latch = new CountDownLatch(clientCount);
+        final LongAdder failures = new LongAdder();
+        for (int i = 0; i < clientCount; i++) {
+            //User i is in channel i % channelCount, this spreads the users of every channel across all nodes
+            final int node = (i / channelCount) % nodeCount;
+            final LoadClient client = new LoadClient("user-" + i, node, localLatency, remoteLatency, received);
+            clients.add(client);
+            semaphore.acquire();
+            client.connect(webSocketClient, basePort + node, (error) -> {
+                if (error != null) {
+                    failures.increment();
+                }
+                semaphore.release();
+                latch.countDown();
+            });
+        }
+        latch.await();
+        if (failures.sum() > 0) {
+            throw new IllegalStateException(failures.sum() + " clients failed to connect");
+        }
+    }
+
+    /**
+     * Subscriptions are set up asynchronously after the connection is established, so probe messages are sent
+     * to all channels until every client has received one.
+     */
+    private void awaitSubscriptions() {
+        final long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (clients.stream().anyMatch((client) -> !client.hasReceivedAny())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Not all clients received messages on their channels");
+            }
+            for (int channel = 0; channel < channelCount; channel++) {
+                final JsonArray messages = new JsonArray().add(createMessage(CHANNEL_PREFIX + channel, "probe", null));
+                post(basePort + channel % nodeCount, new JsonObject().put("messages", messages).toBuffer());
+            }
+            sleep(500);
+        }
+    }
+
+    private void sendBatch(long firstSequence) {
+        final int node = (int) ((firstSequence / batchSize) % nodeCount);
+        final JsonArray messages = new JsonArray();
+        for (int i = 0; i < batchSize; i++) {
+            final long sequence = firstSequence + i;
+            final JsonObject additionalData = new JsonObject()
+                .put(LoadClient.DATA_SENT_AT, System.nanoTime())
+                .put(LoadClient.DATA_NODE, node);
+            messages.add(createMessage(CHANNEL_PREFIX + (sequence % channelCount), "Load test message " + sequence, additionalData));
+        }
+        post(basePort + node, new JsonObject().put("messages", messages).toBuffer());
+        sent.add(batchSize);
+    }
+
+    private JsonObject createMessage(String channel, String text, JsonObject additionalData) {
+        return new JsonObject()
+            .put("senderUserId", "loadtest")
+            .put("senderDisplayName", "Load Test")
+            .put("channel", channel)
+            .put("text", text)
+            .put("additionalData", additionalData);
+    }
+
+    private void post(int port, Buffer body) {
+        httpClient.post(port, "localhost", "/send", (response) -> {
+            if (response.statusCode() != 200) {
+                sendErrors.increment();
+            }
+        }).exceptionHandler((ignored) -> sendErrors.increment()).end(body);
+    }
+
+    private JsonArray channelsForUser(String userId) {
+        final int index = Integer.parseInt(userId.substring(userId.indexOf('-') + 1));
+        return new JsonArray().add(CHANNEL_PREFIX + (index % channelCount));
+    }
+
+    private void printLatency(String label, LatencyHistogram histogram) {
+        print("%s %d samples, p50 %dus, p99 %dus, p999 %dus, max %dus", label, histogram.count(),
+            histogram.percentileMicros(50), histogram.percentileMicros(99), histogram.percentileMicros(99.9),
+            histogram.maxMicros());
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1fMB", bytes / (1024d * 1024d));
+    }
+
+    private static void print(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * In-process stand-in for the remote endpoint that AuthService calls.
+ * Every token is accepted as the user-id and gets the channels returned by the channel-function.
+ */
+public class StubAuthServer {
+    private final Vertx vertx;
+    private final String endpoint;
+    private final Function<String, JsonArray> channelFunction;
+    private HttpServer server;
+
+    public StubAuthServer(Vertx vertx, String endpoint, Function<String, JsonArray> channelFunction) {
+        this.vertx = vertx;
+        this.endpoint = endpoint;
+        this.channelFunction = channelFunction;
+    }
+
+    public int start(int port) {
+        final CompletableFuture<HttpServer> future = new CompletableFuture<>();
+        server = vertx.createHttpServer().requestHandler((request) -> {
+            final String token = request.getParam("token");
+            if (!endpoint.equals(request.path()) || token == null) {
+                request.response().setStatusCode(404).end();
+                return;
+            }
+            final JsonObject json = new JsonObject()
+                .put("success", true)
+                .put("userId", token)
+                .put("channels", channelFunction.apply(token));
+            request.response().putHeader("Content-Type", "application/json").end(json.toBuffer());
+        }).listen(port, "localhost", (result) -> {
+            if (result.succeeded()) {
+                future.complete(result.result());
+            } else {
+                future.completeExceptionally(result.cause());
+            }
+        });
+        return future.join().actualPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+
+import java.util.Collections;
+
+/**
+ * Routes every channel and user through its own event-bus address.
+ * Channel-envelopes use versioned addresses, because servers before them published single messages to the
+ * channel-addresses. With eventbus.legacy.channels servers publish single messages to the old addresses and consume
+ * both, so old and new servers can run in one cluster during an upgrade.
+ */
+public class AddressMessageRouter implements MessageRouter {
+    private final EventServerVerticle verticle;
+    private final boolean legacyChannels;
+
+    public AddressMessageRouter(EventServerVerticle verticle) {
+        this.verticle = verticle;
+        this.legacyChannels = Config.getBoolean(EventServerVerticle.CONFIG_EVENTBUS_LEGACY_CHANNELS, false);
+    }
+
+    @Override
+    public void publishChannelMessages(String channel, ChatEnvelope envelope) {
+        if (legacyChannels) {
+            final String address = verticle.generateLegacyChannelAddress(channel);
+            for (ChatMessage message : envelope.getMessages()) {
+                verticle.eventBus.publish(address, message);
+            }
+            return;
+        }
+        verticle.eventBus.publish(verticle.generateChannelAddress(channel), envelope);
+    }
+
+    @Override
+    public void publishPrivateMessage(String userId, ChatMessage message) {
+        verticle.eventBus.publish(verticle.generatePrivateMessageAddress(userId), message);
+    }
+
+    @Override
+    public void publishUserUpdate(String userId, JsonArray channels) {
+        verticle.eventBus.publish(verticle.generateUserUpdateAddress(userId), channels);
+    }
+
+    @Override
+    public Registration registerChannel(String channel, Handler<ChatEnvelope> handler) {
+        final MessageConsumer<ChatEnvelope> consumer = verticle.eventBus.consumer(
+            verticle.generateChannelAddress(channel),
+            (message) -> handler.handle(message.body()));
+        if (!legacyChannels) {
+            return consumer::unregister;
+        }
+        final MessageConsumer<ChatMessage> legacyConsumer = verticle.eventBus.consumer(
+            verticle.generateLegacyChannelAddress(channel),
+            (message) -> handler.handle(ChatEnvelope.forMessages(Collections.singletonList(message.body()))));
+        return () -> {
+            consumer.unregister();
+            legacyConsumer.unregister();
+        };
+    }
+
+    @Override
+    public Registration registerUser(String userId, Handler<ChatMessage> privateMessageHandler, Handler<JsonArray> updateHandler) {
+        final MessageConsumer<JsonArray> updateConsumer = verticle.eventBus.consumer(
+            verticle.generateUserUpdateAddress(userId),
+            (message) -> updateHandler.handle(message.body()));
+        final MessageConsumer<ChatMessage> privateMessageConsumer = verticle.eventBus.consumer(
+            verticle.generatePrivateMessageAddress(userId),
+            (message) -> privateMessageHandler.handle(message.body()));
+        return () -> {
+            updateConsumer.unregister();
+            privateMessageConsumer.unregister();
+        };
+    }
+}
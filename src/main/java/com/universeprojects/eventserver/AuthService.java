@@ -1,7 +1,12 @@
 package com.universeprojects.eventserver;
 
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.client.Counter;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -12,7 +17,23 @@ import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.ext.web.codec.BodyCodec;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Authenticates tokens at the application-server. Successful responses are cached per token for a short time, and
+ * concurrent authentications of the same token share one request, so a user reconnecting with several tabs causes a
+ * single call. When /updateUsers changes the channels of users, their cached responses are dropped on all nodes.
+ */
 public class AuthService {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -22,14 +43,27 @@ public class AuthService {
     public static final String CONFIG_AUTH_ENDPOINT = "remote_auth_endpoint";
     public static final String CONFIG_HEADER_NAME = "remote_api_header_name";
     public static final String CONFIG_HEADER_VALUE = "remote_api_header_value";
+    public static final String CONFIG_CACHE_TTL = "remote_auth_cache_ttl";
+    public static final String CONFIG_CACHE_MAX_ENTRIES = "remote_auth_cache_max_entries";
+    public static final String ADDRESS_INVALIDATE = "auth.invalidate";
     public static final int MAX_ATTEMPTS = 5;
 
-    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private static final long DEFAULT_CACHE_TTL = 10 * 1000;
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+
+    private static final Counter COUNTER_REQUESTS = Counter.build().name("auth_requests_total").help("Authentications by whether they were answered from the cache, joined a running request or called the application-server").labelNames("result").register();
+    private static final Counter COUNTER_INVALIDATIONS = Counter.build().name("auth_cache_invalidations_total").help("Cached authentications dropped because the channels of their user were updated").register();
+
     private final EventServerVerticle verticle;
     private final String authEndpoint;
     private final String headerName;
     private final String headerValue;
     private final WebClient client;
+    private final long cacheTtl;
+    private final Map<String, CachedAuth> cache;
+    private final ConcurrentMap<String, List<Waiter>> running = new ConcurrentHashMap<>();
+    //Responses of requests that were running during an invalidation are not cached, as they might be outdated
+    private final AtomicLong invalidations = new AtomicLong();
 
     public AuthService(EventServerVerticle verticle) {
         this.verticle = verticle;
@@ -47,10 +81,121 @@ public class AuthService {
             setFollowRedirects(false);
 
         client = WebClient.create(verticle.getVertx(), options);
+
+        cacheTtl = Config.getLong(CONFIG_CACHE_TTL, DEFAULT_CACHE_TTL);
+        final int cacheMaxEntries = Config.getInt(CONFIG_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES);
+        cache = Collections.synchronizedMap(new LinkedHashMap<String, CachedAuth>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAuth> eldest) {
+                return size() > cacheMaxEntries;
+            }
+        });
+        verticle.getVertx().eventBus().<JsonArray>consumer(ADDRESS_INVALIDATE, (message) -> invalidateLocal(message.body()));
     }
 
     public void authenticate(String token, Handler<AuthResponse> handler, Handler<Throwable> exceptionHandler) {
-        runAuthRequest(token, handler, exceptionHandler, 1);
+        authenticate(token, true, handler, exceptionHandler);
+    }
+
+    /**
+     * Authenticates the token. Without allowCached the application-server is asked by a new request, even if a
+     * response is cached or a request is running, for clients that request a re-authentication. The handlers are
+     * called on the context of the caller.
+     */
+    public void authenticate(String token, boolean allowCached, Handler<AuthResponse> handler, Handler<Throwable> exceptionHandler) {
+        final Waiter waiter = new Waiter(Vertx.currentContext(), handler, exceptionHandler);
+        if (!allowCached) {
+            COUNTER_REQUESTS.labels("miss").inc();
+            final long startedAt = System.currentTimeMillis();
+            final long startInvalidations = invalidations.get();
+            runAuthRequest(token,
+                (response) -> {
+                    cacheResponse(token, startedAt, startInvalidations, response);
+                    waiter.complete(response, null);
+                },
+                (exception) -> waiter.complete(null, exception),
+                1);
+            return;
+        }
+        if (cacheTtl > 0) {
+            final CachedAuth cached = cache.get(token);
+            if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+                COUNTER_REQUESTS.labels("hit").inc();
+                handler.handle(cached.response);
+                return;
+            }
+        }
+        final boolean[] started = new boolean[1];
+        running.compute(token, (key, waiters) -> {
+            final List<Waiter> list = waiters != null ? waiters : new ArrayList<>();
+            started[0] = waiters == null;
+            list.add(waiter);
+            return list;
+        });
+        if (!started[0]) {
+            COUNTER_REQUESTS.labels("joined").inc();
+            return;
+        }
+        COUNTER_REQUESTS.labels("miss").inc();
+        final long startedAt = System.currentTimeMillis();
+        final long startInvalidations = invalidations.get();
+        runAuthRequest(token,
+            (response) -> complete(token, startedAt, startInvalidations, response, null),
+            (exception) -> complete(token, startedAt, startInvalidations, null, exception),
+            1);
+    }
+
+    private void complete(String token, long startedAt, long startInvalidations, AuthResponse response, Throwable exception) {
+        if (response != null) {
+            cacheResponse(token, startedAt, startInvalidations, response);
+        }
+        final List<Waiter> waiters = running.remove(token);
+        if (waiters == null) {
+            return;
+        }
+        for (Waiter waiter : waiters) {
+            try {
+                waiter.complete(response, exception);
+            } catch (RuntimeException ex) {
+                log.error("Error handling the authentication of a token", ex);
+            }
+        }
+    }
+
+    /**
+     * Caches a successful response, unless a response to a newer request is cached already.
+     */
+    private void cacheResponse(String token, long startedAt, long startInvalidations, AuthResponse response) {
+        if (response.success && cacheTtl > 0 && invalidations.get() == startInvalidations) {
+            cache.merge(token, new CachedAuth(response, startedAt, System.currentTimeMillis() + cacheTtl),
+                (existing, added) -> added.startedAt >= existing.startedAt ? added : existing);
+        }
+    }
+
+    /**
+     * Drops the cached responses of the users on all nodes.
+     */
+    public void invalidateUsers(JsonArray userIds) {
+        verticle.getVertx().eventBus().publish(ADDRESS_INVALIDATE, userIds);
+    }
+
+    private void invalidateLocal(JsonArray userIds) {
+        invalidations.incrementAndGet();
+        final Set<Object> users = new HashSet<>();
+        for (Object userId : userIds) {
+            users.add(userId);
+        }
+        int removed = 0;
+        synchronized (cache) {
+            final Iterator<CachedAuth> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                if (users.contains(iterator.next().response.userId)) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        COUNTER_INVALIDATIONS.inc(removed);
     }
 
     private void runAuthRequest(String token, Handler<AuthResponse> handler, Handler<Throwable> exceptionHandler, int attempt) {
@@ -63,25 +208,83 @@ public class AuthService {
         }
 
         request.send((result) -> {
-            if (result.succeeded()) {
-                HttpResponse<JsonObject> response = result.result();
-                if (response.statusCode() == HttpResponseStatus.OK.code()) {
-                    final JsonObject json = response.body();
-                    final AuthResponse authResponse = AuthResponse.fromJson(json);
-                    handler.handle(authResponse);
+            try {
+                handleAuthResult(result, token, handler, exceptionHandler, attempt);
+            } catch (RuntimeException ex) {
+                //e.g. a response that doesn't match the expected format, the waiters must still be completed
+                exceptionHandler.handle(ex);
+            }
+        });
+    }
+
+    private void handleAuthResult(AsyncResult<HttpResponse<JsonObject>> result, String token, Handler<AuthResponse> handler, Handler<Throwable> exceptionHandler, int attempt) {
+        if (result.succeeded()) {
+            HttpResponse<JsonObject> response = result.result();
+            if (response.statusCode() == HttpResponseStatus.OK.code()) {
+                final JsonObject json = response.body();
+                final AuthResponse authResponse = AuthResponse.fromJson(json);
+                handler.handle(authResponse);
+            } else {
+                if (attempt < MAX_ATTEMPTS) {
+                    runAuthRequest(token, handler, exceptionHandler, attempt + 1);
+                    log.warn("Auth-attempt returned status code " + response.statusCode() +
+                        " - retrying (attmpt " + attempt + ")");
                 } else {
-                    if (attempt < MAX_ATTEMPTS) {
-                        runAuthRequest(token, handler, exceptionHandler, attempt + 1);
-                        log.warn("Auth-attempt returned status code " + response.statusCode() +
-                            " - retrying (attmpt " + attempt + ")");
-                    } else {
-                        exceptionHandler.handle(new IOException("Bad status code " +
-                            response.statusCode() + " in auth response after " + attempt + " attempts - giving up"));
-                    }
+                    exceptionHandler.handle(new IOException("Bad status code " +
+                        response.statusCode() + " in auth response after " + attempt + " attempts - giving up"));
                 }
+            }
+        } else {
+            exceptionHandler.handle(result.cause());
+        }
+    }
+
+    private static class CachedAuth {
+        private final AuthResponse response;
+        private final long startedAt;
+        private final long expiresAt;
+
+        private CachedAuth(AuthResponse response, long startedAt, long expiresAt) {
+            this.response = response;
+            this.startedAt = startedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A caller waiting for a running request.
+     */
+    private static class Waiter {
+        private final Context context;
+        private final Handler<AuthResponse> handler;
+        private final Handler<Throwable> exceptionHandler;
+        private boolean completed = false;
+
+        private Waiter(Context context, Handler<AuthResponse> handler, Handler<Throwable> exceptionHandler) {
+            this.context = context;
+            this.handler = handler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        private void complete(AuthResponse response, Throwable exception) {
+            //A handler that throws is reported to the request's exception-handler, which must not complete it again
+            if (completed) {
+                return;
+            }
+            completed = true;
+            if (context == null || context == Vertx.currentContext()) {
+                handle(response, exception);
             } else {
-                exceptionHandler.handle(result.cause());
+                context.runOnContext((ignored) -> handle(response, exception));
             }
-        });
+        }
+
+        private void handle(AuthResponse response, Throwable exception) {
+            if (response != null) {
+                handler.handle(response);
+            } else {
+                exceptionHandler.handle(exception);
+            }
+        }
     }
 }
@@ -0,0 +1,259 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary wire-format for {@link ChatMessage} and {@link ChatEnvelope}.
+ * Binary frames start with a negative marker, while the JSON-format starts with the (positive) length of the
+ * encoded JSON. This allows every node to decode both formats, so the format can be switched once all nodes of a
+ * cluster understand it.
+ * Since version 2 every message also carries its pre-encoded client-frame, so receiving nodes can write it to
+ * their sockets without encoding it again.
+ * Since version 3 every message is prefixed with its length. Newer versions only append fields to a message (or to
+ * the end of the frame) and gate them by flags, so frames of newer versions are decoded as far as they are known and
+ * the rest is skipped. Frames of versions 1 and 2 are still decoded.
+ */
+public class BinaryChatCodec {
+    public static final BinaryChatCodec INSTANCE = new BinaryChatCodec();
+
+    private static final int MARKER = -1;
+    private static final byte VERSION = 3;
+    private static final byte VERSION_LENGTH_PREFIX = 3;
+    private static final int NULL_LENGTH = -1;
+    private static final int MAX_INTERNED_STRINGS = 10000;
+
+    private static final byte FLAG_TIMESTAMP = 1;
+    private static final byte FLAG_ADDITIONAL_DATA = 1 << 1;
+    private static final byte FLAG_MESSAGES = 1 << 2;
+    private static final byte FLAG_ERROR = 1 << 3;
+    private static final byte FLAG_CLIENT_BUFFER = 1 << 4;
+
+    private final Map<String, String> internedStrings = new ConcurrentHashMap<>();
+
+    public static boolean isBinary(int pos, Buffer buffer) {
+        return buffer.getInt(pos) == MARKER;
+    }
+
+    public void encodeMessage(Buffer buffer, ChatMessage message) {
+        buffer.appendInt(MARKER);
+        buffer.appendByte(VERSION);
+        appendMessage(buffer, message, true);
+    }
+
+    /**
+     * Encodes a message without its client-frame, which is encoded again when the message is sent to a client. Used
+     * where the message is kept for a long time, decoded with {@link #decodeMessage}.
+     */
+    public void encodeStoredMessage(Buffer buffer, ChatMessage message) {
+        buffer.appendInt(MARKER);
+        buffer.appendByte(VERSION);
+        appendMessage(buffer, message, false);
+    }
+
+    public ChatMessage decodeMessage(int pos, Buffer buffer) {
+        final Reader reader = new Reader(buffer, pos);
+        reader.readHeader();
+        return reader.readMessage();
+    }
+
+    public void encodeEnvelope(Buffer buffer, ChatEnvelope envelope) {
+        buffer.appendInt(MARKER);
+        buffer.appendByte(VERSION);
+        final List<ChatMessage> messages = envelope.getMessages();
+        final String error = envelope.getError();
+        byte flags = 0;
+        if (messages != null) {
+            flags |= FLAG_MESSAGES;
+        }
+        if (error != null) {
+            flags |= FLAG_ERROR;
+        }
+        buffer.appendByte(flags);
+        if (error != null) {
+            appendString(buffer, error);
+        }
+        if (messages != null) {
+            buffer.appendInt(messages.size());
+            for (ChatMessage message : messages) {
+                appendMessage(buffer, message, true);
+            }
+        }
+    }
+
+    public ChatEnvelope decodeEnvelope(int pos, Buffer buffer) {
+        final Reader reader = new Reader(buffer, pos);
+        reader.readHeader();
+        final byte flags = reader.readByte();
+        String error = null;
+        if ((flags & FLAG_ERROR) != 0) {
+            error = reader.readString();
+        }
+        List<ChatMessage> messages = null;
+        if ((flags & FLAG_MESSAGES) != 0) {
+            final int count = reader.readInt();
+            final List<ChatMessage> decodedMessages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                decodedMessages.add(reader.readMessage());
+            }
+            messages = Collections.unmodifiableList(decodedMessages);
+        }
+        return new ChatEnvelope(messages, error);
+    }
+
+    private void appendMessage(Buffer buffer, ChatMessage message, boolean includeClientBuffer) {
+        final int lengthPos = buffer.length();
+        buffer.appendInt(0);
+        byte flags = 0;
+        if (message.timestamp != null) {
+            flags |= FLAG_TIMESTAMP;
+        }
+        if (message.additionalData != null) {
+            flags |= FLAG_ADDITIONAL_DATA;
+        }
+        if (includeClientBuffer) {
+            flags |= FLAG_CLIENT_BUFFER;
+        }
+        buffer.appendByte(flags);
+        appendString(buffer, message.senderUserId);
+        appendString(buffer, message.senderDisplayName);
+        appendString(buffer, message.channel);
+        appendString(buffer, message.text);
+        buffer.appendInt(message.targetUserIds.size());
+        for (String userId : message.targetUserIds) {
+            appendString(buffer, userId);
+        }
+        if (message.timestamp != null) {
+            buffer.appendLong(message.timestamp);
+        }
+        if (message.additionalData != null) {
+            final Buffer additionalData = message.additionalData.toBuffer();
+            buffer.appendInt(additionalData.length());
+            buffer.appendBuffer(additionalData);
+        }
+        if (includeClientBuffer) {
+            final Buffer clientBuffer = ChatMessageCodec.INSTANCE.toClientBuffer(message);
+            buffer.appendInt(clientBuffer.length());
+            buffer.appendBuffer(clientBuffer);
+        }
+        buffer.setInt(lengthPos, buffer.length() - lengthPos - 4);
+    }
+
+    private void appendString(Buffer buffer, String string) {
+        if (string == null) {
+            buffer.appendInt(NULL_LENGTH);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        buffer.appendInt(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    private String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        final String existing = internedStrings.putIfAbsent(string, string);
+        if (existing != null) {
+            return existing;
+        }
+        if (internedStrings.size() > MAX_INTERNED_STRINGS) {
+            internedStrings.clear();
+        }
+        return string;
+    }
+
+    private class Reader {
+        private final Buffer buffer;
+        private int pos;
+        private byte version;
+
+        private Reader(Buffer buffer, int pos) {
+            this.buffer = buffer;
+            this.pos = pos;
+        }
+
+        private void readHeader() {
+            final int marker = readInt();
+            if (marker != MARKER) {
+                throw new IllegalStateException("Not a binary chat-frame");
+            }
+            version = readByte();
+            if (version < 1) {
+                throw new IllegalStateException("Invalid binary chat-frame version " + version);
+            }
+        }
+
+        private byte readByte() {
+            return buffer.getByte(pos++);
+        }
+
+        private int readInt() {
+            final int value = buffer.getInt(pos);
+            pos += 4;
+            return value;
+        }
+
+        private long readLong() {
+            final long value = buffer.getLong(pos);
+            pos += 8;
+            return value;
+        }
+
+        private String readString() {
+            final int length = readInt();
+            if (length == NULL_LENGTH) {
+                return null;
+            }
+            final String string = buffer.getString(pos, pos + length, "UTF-8");
+            pos += length;
+            return string;
+        }
+
+        private ChatMessage readMessage() {
+            int end = -1;
+            if (version >= VERSION_LENGTH_PREFIX) {
+                final int length = readInt();
+                end = pos + length;
+            }
+            final byte flags = readByte();
+            final String senderUserId = intern(readString());
+            final String senderDisplayName = intern(readString());
+            final String channel = intern(readString());
+            final String text = readString();
+            final int targetCount = readInt();
+            final List<String> targetUserIds = new ArrayList<>(targetCount);
+            for (int i = 0; i < targetCount; i++) {
+                targetUserIds.add(readString());
+            }
+            Long timestamp = null;
+            if ((flags & FLAG_TIMESTAMP) != 0) {
+                timestamp = readLong();
+            }
+            JsonObject additionalData = null;
+            if ((flags & FLAG_ADDITIONAL_DATA) != 0) {
+                final int length = readInt();
+                additionalData = new JsonObject(buffer.getBuffer(pos, pos + length));
+                pos += length;
+            }
+            final ChatMessage message = ChatMessage.decoded(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds);
+            if ((flags & FLAG_CLIENT_BUFFER) != 0) {
+                final int length = readInt();
+                message.clientBuffer = buffer.getBuffer(pos, pos + length);
+                pos += length;
+            }
+            if (end >= 0) {
+                //Skips the fields added by newer versions
+                pos = end;
+            }
+            return message;
+        }
+    }
+}
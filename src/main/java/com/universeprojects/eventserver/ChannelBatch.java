@@ -0,0 +1,59 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the messages of one channel for the sockets owned by one context.
+ * Only ever touched from that context, so it does not need any locking. The batch is flushed early when the sockets
+ * change, so every socket gets exactly the messages that arrived while it was subscribed.
+ */
+public class ChannelBatch {
+    private final Context context;
+    private final long window;
+    private final int maxMessages;
+    private List<ChatMessage> messages = new ArrayList<>();
+    private List<ClientSocket> recipients = Collections.emptyList();
+    private Long timerId;
+
+    public ChannelBatch(Context context, long window, int maxMessages) {
+        this.context = context;
+        this.window = window;
+        this.maxMessages = maxMessages;
+    }
+
+    public void add(List<ChatMessage> newMessages, List<ClientSocket> sockets) {
+        if (!messages.isEmpty() && !recipients.equals(sockets)) {
+            flush();
+        }
+        messages.addAll(newMessages);
+        recipients = sockets;
+        if (messages.size() >= maxMessages) {
+            flush();
+        } else if (timerId == null) {
+            timerId = context.owner().setTimer(window, (ignored) -> {
+                timerId = null;
+                flush();
+            });
+        }
+    }
+
+    public void flush() {
+        if (timerId != null) {
+            context.owner().cancelTimer(timerId);
+            timerId = null;
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        final Buffer buffer = ChatEnvelope.forMessages(messages).toBuffer();
+        messages = new ArrayList<>();
+        for (ClientSocket socket : recipients) {
+            socket.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers the messages of a channel-envelope to all local sockets of a subscription as a single frame.
+ * Sockets are grouped by the event-loop context that owns them and every context gets a single task per envelope.
+ * Sockets of the current context are written inline as long as no dispatched task of the same channel is still
+ * pending, so the order of messages per channel is kept.
+ * If batching is enabled the messages are collected per channel and context and sent as one frame
+ * once the batch-window has passed or the batch is full.
+ */
+public class ChannelFanout {
+    public static final String CONFIG_BATCH_WINDOW = "channel_batch_window";
+    public static final String CONFIG_BATCH_SIZE = "channel_batch_size";
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final long batchWindow;
+    private final int batchSize;
+
+    public ChannelFanout() {
+        this(Config.getLong(CONFIG_BATCH_WINDOW, 0),
+            Config.getInt(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+    }
+
+    public ChannelFanout(long batchWindow, int batchSize) {
+        this.batchWindow = batchWindow;
+        this.batchSize = batchSize;
+    }
+
+    public boolean isBatching() {
+        return batchWindow > 0;
+    }
+
+    public void deliver(ChannelSubscription subscription, ChatEnvelope envelope) {
+        final List<ClientSocket> sockets = collectSockets(subscription);
+        if (sockets.isEmpty()) {
+            return;
+        }
+        if (isBatching()) {
+            deliverBatched(subscription, envelope.getMessages(), sockets);
+            return;
+        }
+        final Buffer buffer = envelope.toBuffer();
+        final Context currentContext = Vertx.currentContext();
+        final boolean inline = subscription.pendingFanouts.get() == 0;
+        final Map<Context, List<ClientSocket>> socketsByContext = groupByContext(sockets);
+        for (Map.Entry<Context, List<ClientSocket>> entry : socketsByContext.entrySet()) {
+            final Context context = entry.getKey();
+            final List<ClientSocket> contextSockets = entry.getValue();
+            if (context == currentContext && inline) {
+                writeAll(contextSockets, buffer);
+            } else {
+                subscription.pendingFanouts.incrementAndGet();
+                context.runOnContext((ignored) -> {
+                    try {
+                        writeAll(contextSockets, buffer);
+                    } finally {
+                        subscription.pendingFanouts.decrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    private void deliverBatched(ChannelSubscription subscription, List<ChatMessage> messages, List<ClientSocket> sockets) {
+        final Context currentContext = Vertx.currentContext();
+        final Map<Context, List<ClientSocket>> socketsByContext = groupByContext(sockets);
+        for (Map.Entry<Context, List<ClientSocket>> entry : socketsByContext.entrySet()) {
+            final Context context = entry.getKey();
+            final List<ClientSocket> contextSockets = entry.getValue();
+            if (context == currentContext) {
+                addToBatch(subscription, context, messages, contextSockets);
+            } else {
+                context.runOnContext((ignored) -> addToBatch(subscription, context, messages, contextSockets));
+            }
+        }
+    }
+
+    private void addToBatch(ChannelSubscription subscription, Context context, List<ChatMessage> messages, List<ClientSocket> sockets) {
+        final ChannelBatch batch = subscription.batches.computeIfAbsent(context,
+            (key) -> new ChannelBatch(context, batchWindow, batchSize));
+        batch.add(messages, sockets);
+    }
+
+    private List<ClientSocket> collectSockets(ChannelSubscription subscription) {
+        final List<ClientSocket> sockets = new ArrayList<>();
+        for (User user : subscription.users) {
+            sockets.addAll(user.clientSockets.values());
+        }
+        return sockets;
+    }
+
+    private Map<Context, List<ClientSocket>> groupByContext(List<ClientSocket> sockets) {
+        final Map<Context, List<ClientSocket>> socketsByContext = new IdentityHashMap<>();
+        for (ClientSocket socket : sockets) {
+            socketsByContext.computeIfAbsent(socket.context, (key) -> new ArrayList<>()).add(socket);
+        }
+        return socketsByContext;
+    }
+
+    private void writeAll(List<ClientSocket> sockets, Buffer buffer) {
+        for (ClientSocket socket : sockets) {
+            socket.write(buffer);
+        }
+    }
+}
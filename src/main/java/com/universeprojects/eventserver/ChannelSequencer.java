@@ -0,0 +1,162 @@
+package com.universeprojects.eventserver;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.IMap;
+import io.prometheus.client.Counter;
+import io.vertx.core.Context;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Numbers the messages of every channel before they are published and stored, so a client that reconnects can ask for
+ * the messages after the last number it received.
+ * The last number of every channel is kept in a Hazelcast map and advanced by an entry-processor, which is a single
+ * asynchronous operation on the member owning the channel. Every node has at most one of these operations per channel
+ * running, the messages that arrive in the meantime are numbered together by the next one, so the numbers are handed
+ * out in the order the messages arrived.
+ * Channels that weren't used for channel.sequence.max.idle seconds are removed from the map. When a channel has no
+ * entry, because it is new, idle or the whole cluster was restarted, it continues after the newest number in its
+ * history.
+ */
+public class ChannelSequencer {
+    public static final String MAP_NAME = "sequences";
+    public static final String CONFIG_MAX_IDLE = "channel_sequence_max_idle";
+    public static final int DEFAULT_MAX_IDLE = 7 * 24 * 60 * 60;
+
+    private static final Counter COUNTER_FAILURES = Counter.build().name("channel_sequence_failures_total").help("Channel-messages that were published without sequence-number because the counter failed").register();
+    private static final Counter COUNTER_SEEDS = Counter.build().name("channel_sequence_seeds_total").help("Channels whose sequence was continued from the newest number in their history").register();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final EventServerVerticle verticle;
+    private final IMap<String, Long> sequences;
+    //The requests waiting for the running operation of their channel
+    private final Map<String, List<Request>> waiting = new HashMap<>();
+
+    public ChannelSequencer(EventServerVerticle verticle) {
+        this.verticle = verticle;
+        final HazelcastClusterManager clusterManager = (HazelcastClusterManager) ((VertxInternal) verticle.getVertx()).getClusterManager();
+        this.sequences = clusterManager.getHazelcastInstance().getMap(MAP_NAME);
+    }
+
+    /**
+     * Calls the handler with numbered copies of the messages, on the context assign was called on. If numbering
+     * fails, the messages are passed on without numbers, clients will then get the whole history for the channel on
+     * their next connect.
+     */
+    public void assign(String channel, List<ChatMessage> messages, Consumer<List<ChatMessage>> handler) {
+        final Request request = new Request(verticle.getVertx().getOrCreateContext(), messages, handler);
+        synchronized (waiting) {
+            final List<Request> requests = waiting.get(channel);
+            if (requests != null) {
+                requests.add(request);
+                return;
+            }
+            waiting.put(channel, new ArrayList<>());
+        }
+        final List<Request> requests = new ArrayList<>(1);
+        requests.add(request);
+        submit(channel, requests, SequenceProcessor.UNKNOWN_FLOOR);
+    }
+
+    private void submit(String channel, List<Request> requests, long floor) {
+        final int count = countMessages(requests);
+        sequences.submitToKey(channel, new SequenceProcessor(count, floor), new ExecutionCallback<Object>() {
+            @Override
+            public void onResponse(Object response) {
+                if (response == null) {
+                    seed(channel, requests);
+                    return;
+                }
+                long sequence = (Long) response - count;
+                for (Request request : requests) {
+                    request.complete(number(request.messages, sequence));
+                    sequence += request.messages.size();
+                }
+                submitNext(channel);
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                fail(channel, requests, ex);
+            }
+        });
+    }
+
+    /**
+     * Looks up the newest number in the history of the channel and submits the requests again with it.
+     */
+    private void seed(String channel, List<Request> requests) {
+        final int historySize = verticle.historyPolicies.get(channel).maxMessages;
+        verticle.historyService.fetchHistoryPage(channel, historySize, null, null, 1, (newest) -> {
+            if (newest == null) {
+                fail(channel, requests, new IllegalStateException("History could not be fetched"));
+                return;
+            }
+            final Long sequence = !newest.isEmpty() ? newest.get(0).getSequence() : null;
+            COUNTER_SEEDS.inc();
+            submit(channel, requests, sequence != null ? sequence : 0);
+        });
+    }
+
+    private void submitNext(String channel) {
+        final List<Request> requests;
+        synchronized (waiting) {
+            requests = waiting.remove(channel);
+            if (requests.isEmpty()) {
+                return;
+            }
+            waiting.put(channel, new ArrayList<>());
+        }
+        submit(channel, requests, SequenceProcessor.UNKNOWN_FLOOR);
+    }
+
+    private int countMessages(List<Request> requests) {
+        int count = 0;
+        for (Request request : requests) {
+            count += request.messages.size();
+        }
+        return count;
+    }
+
+    private List<ChatMessage> number(List<ChatMessage> messages, long previous) {
+        long sequence = previous;
+        final List<ChatMessage> sequenced = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            sequenced.add(message.withSequence(++sequence));
+        }
+        return sequenced;
+    }
+
+    private void fail(String channel, List<Request> requests, Throwable cause) {
+        log.warn("Error numbering messages for channel " + channel, cause);
+        for (Request request : requests) {
+            COUNTER_FAILURES.inc(request.messages.size());
+            request.complete(request.messages);
+        }
+        submitNext(channel);
+    }
+
+    private static class Request {
+        private final Context context;
+        private final List<ChatMessage> messages;
+        private final Consumer<List<ChatMessage>> handler;
+
+        private Request(Context context, List<ChatMessage> messages, Consumer<List<ChatMessage>> handler) {
+            this.context = context;
+            this.messages = messages;
+            this.handler = handler;
+        }
+
+        private void complete(List<ChatMessage> result) {
+            context.runOnContext((ignored) -> handler.accept(result));
+        }
+    }
+}
@@ -1,21 +1,17 @@
 package com.universeprojects.eventserver;
 
 import io.prometheus.client.Gauge;
-import io.vertx.core.buffer.Buffer;
-import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
 
 import java.util.Collection;
 import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ChannelService {
-    private final Map<String, ChannelSubscription> channelSubscriptions = new TreeMap<>();
-    private final ReentrantLock channelSubscriptionLock = new ReentrantLock();
+    private final ConcurrentMap<String, ChannelSubscription> channelSubscriptions = new ConcurrentHashMap<>();
     private final EventServerVerticle verticle;
+    private final ChannelFanout fanout = new ChannelFanout();
     private static final Gauge GAUGE_CHANNELS = Gauge.build().name("channels_total").help("Number of channels").register();
 
     public ChannelService(EventServerVerticle verticle) {
@@ -23,58 +19,86 @@ public class ChannelService {
     }
 
     public Set<String> updateSubscriptions(User user, Collection<String> newChannels) {
-        Set<String> addedChannels = new LinkedHashSet<>();
-        addedChannels.addAll(newChannels);
-        addedChannels.removeAll(user.channelSubscriptions.keySet());
+        return user.executeLockedReturning((u) -> {
+            Set<String> addedChannels = new LinkedHashSet<>();
+            addedChannels.addAll(newChannels);
+            addedChannels.removeAll(u.channelSubscriptions.keySet());
 
-        Set<String> removedChannels = new LinkedHashSet<>();
-        removedChannels.addAll(user.channelSubscriptions.keySet());
-        removedChannels.removeAll(newChannels);
+            Set<String> removedChannels = new LinkedHashSet<>();
+            removedChannels.addAll(u.channelSubscriptions.keySet());
+            removedChannels.removeAll(newChannels);
 
-        if(addedChannels.isEmpty() && removedChannels.isEmpty()) return addedChannels;
-
-        channelSubscriptionLock.lock();
-        try {
             for(String channel : removedChannels) {
-                final ChannelSubscription subscription = user.channelSubscriptions.remove(channel);
-                subscription.users.remove(user);
-                if(subscription.users.isEmpty()) {
-                    unsubscribe(subscription);
+                u.channelSubscriptions.remove(channel);
+                final ChannelSubscription subscription = channelSubscriptions.get(channel);
+                if(subscription != null) {
+                    leave(subscription, u);
                 }
             }
             for(String channel : addedChannels) {
-                ChannelSubscription subscription = channelSubscriptions.get(channel);
-                if(subscription == null) {
-                    final ChannelSubscription newSubscription = new ChannelSubscription(channel);
-                    newSubscription.messageConsumer = verticle.eventBus.consumer(
-                        verticle.generateChannelAddress(channel),
-                        (message) -> processChannelMessage(newSubscription, message));
-                    channelSubscriptions.put(channel, newSubscription);
-                    subscription = newSubscription;
+                u.channelSubscriptions.put(channel, join(channel, u));
+            }
+            return addedChannels;
+        });
+    }
+
+    /**
+     * Adds the user to the subscription of the channel. The first user registers the channel at the router and the
+     * history-cache. That happens under the lock of the subscription, not within the map, so only users of the same
+     * channel wait for it.
+     */
+    private ChannelSubscription join(String channel, User user) {
+        while(true) {
+            final ChannelSubscription subscription = channelSubscriptions.computeIfAbsent(channel, ChannelSubscription::new);
+            synchronized(subscription) {
+                //The last user left while this one waited, a new subscription takes its place
+                if(subscription.closed) {
+                    continue;
+                }
+                if(subscription.registration == null) {
+                    subscribe(subscription);
                 }
                 subscription.users.add(user);
-                user.channelSubscriptions.put(channel, subscription);
-                GAUGE_CHANNELS.inc();
+                return subscription;
             }
-        } finally {
-            channelSubscriptionLock.unlock();
         }
-        return addedChannels;
     }
 
-    private void processChannelMessage(ChannelSubscription subscription, Message<ChatMessage> message) {
-        JsonObject messageJson = ChatEnvelope.forMessage(message.body()).toJson();
-        Buffer buffer = messageJson.toBuffer();
-        subscription.users.parallelStream().flatMap(user -> user.sockets.stream()).forEach(socket -> socket.write(buffer));
+    /**
+     * Removes the user from the subscription. The last user unregisters the channel before the subscription is
+     * removed from the map, so a new subscription of the channel is only registered after that.
+     */
+    private void leave(ChannelSubscription subscription, User user) {
+        synchronized(subscription) {
+            subscription.users.remove(user);
+            if(!subscription.users.isEmpty() || subscription.closed) {
+                return;
+            }
+            subscription.closed = true;
+            if(subscription.registration != null) {
+                unsubscribe(subscription);
+            }
+            channelSubscriptions.remove(subscription.channel, subscription);
+        }
     }
 
-
-    public void unsubscribe(ChannelSubscription subscription) {
-        if(!channelSubscriptionLock.isHeldByCurrentThread()) {
-            throw new IllegalStateException("ChannelSubscriptionLock needs to be held by this thread");
+    private void subscribe(ChannelSubscription subscription) {
+        subscription.registration = verticle.messageRouter.registerChannel(subscription.channel,
+            (envelope) -> processChannelMessages(subscription, envelope));
+        if(verticle.shouldStoreMessages(subscription.channel)) {
+            verticle.historyCache.channelSubscribed(subscription.channel);
         }
-        subscription.messageConsumer.unregister();
-        channelSubscriptions.remove(subscription.channel);
+        GAUGE_CHANNELS.inc();
+    }
+
+    private void processChannelMessages(ChannelSubscription subscription, ChatEnvelope envelope) {
+        verticle.historyCache.channelMessagesReceived(subscription.channel, envelope.getMessages());
+        fanout.deliver(subscription, envelope);
+    }
+
+    private void unsubscribe(ChannelSubscription subscription) {
+        subscription.registration.unregister();
+        verticle.historyCache.channelUnsubscribed(subscription.channel);
         GAUGE_CHANNELS.dec();
     }
 
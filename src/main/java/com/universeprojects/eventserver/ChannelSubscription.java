@@ -1,14 +1,21 @@
 package com.universeprojects.eventserver;
 
-import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.Context;
 
-import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChannelSubscription {
     public final String channel;
-    public final Set<User> users = new LinkedHashSet<>();
-    public MessageConsumer<ChatMessage> messageConsumer;
+    public final Set<User> users = ConcurrentHashMap.newKeySet();
+    public final AtomicInteger pendingFanouts = new AtomicInteger();
+    public final Map<Context, ChannelBatch> batches = new ConcurrentHashMap<>();
+    /** Registered by the first user, guarded by the subscription's lock like closed */
+    public MessageRouter.Registration registration;
+    /** Set when the last user left, the subscription is then replaced by a new one */
+    public boolean closed = false;
 
     public ChannelSubscription(String channel) {
         this.channel = channel;
@@ -1,23 +1,48 @@
 package com.universeprojects.eventserver;
 
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Immutable list of messages or an error as it is sent to clients.
+ */
 public class ChatEnvelope {
+    private static final byte[] MESSAGES_START = "{\"messages\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGES_END = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGES_SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+
     private final List<ChatMessage> messages;
     private final String error;
+    private final List<String> truncatedChannels;
+
+    ChatEnvelope(List<ChatMessage> messages, String error) {
+        this(messages, error, Collections.emptyList());
+    }
 
-    private ChatEnvelope(List<ChatMessage> messages, String error) {
+    private ChatEnvelope(List<ChatMessage> messages, String error, List<String> truncatedChannels) {
         this.messages = messages;
         this.error = error;
+        this.truncatedChannels = truncatedChannels;
     }
 
     public static ChatEnvelope forMessages(List<ChatMessage> messages) {
-        return new ChatEnvelope(messages, null);
+        return new ChatEnvelope(Collections.unmodifiableList(new ArrayList<>(messages)), null);
+    }
+
+    /**
+     * History for a client that asked for the messages after a sequence-number. For the truncated channels the
+     * history doesn't reach back to that number, so the client has missed messages.
+     */
+    public static ChatEnvelope forHistory(List<ChatMessage> messages, Collection<String> truncatedChannels) {
+        return new ChatEnvelope(Collections.unmodifiableList(new ArrayList<>(messages)), null,
+            Collections.unmodifiableList(new ArrayList<>(truncatedChannels)));
     }
 
     public static ChatEnvelope forMessage(ChatMessage message) {
@@ -33,15 +58,28 @@ public class ChatEnvelope {
         List<ChatMessage> messages = null;
         JsonArray messagesJson = json.getJsonArray("messages");
         if(messagesJson != null) {
-            messages = new ArrayList<>();
+            List<ChatMessage> parsedMessages = new ArrayList<>();
             for(Object messageObj : messagesJson) {
                 ChatMessage message = ChatMessageCodec.INSTANCE.fromJson((JsonObject) messageObj);
-                messages.add(message);
+                parsedMessages.add(message);
             }
+            messages = Collections.unmodifiableList(parsedMessages);
         }
         return new ChatEnvelope(messages, errorMessage);
     }
 
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public List<String> getTruncatedChannels() {
+        return truncatedChannels;
+    }
+
     public JsonObject toJson() {
         JsonObject json = new JsonObject();
         if(error != null) {
@@ -54,12 +92,31 @@ public class ChatEnvelope {
             }
             json.put("messages", messagesJson);
         }
+        if(!truncatedChannels.isEmpty()) {
+            json.put("truncatedChannels", new JsonArray(truncatedChannels));
+        }
         return json;
     }
 
-    public ChatEnvelope copy() {
-        List<ChatMessage> messages = this.messages != null ? new ArrayList<>(this.messages) : null;
-        return new ChatEnvelope(messages, error);
+    /**
+     * Encodes the envelope for clients from the pre-encoded messages instead of building a new JSON-tree.
+     */
+    public Buffer toBuffer() {
+        if(error != null || messages == null || !truncatedChannels.isEmpty()) {
+            return toJson().toBuffer();
+        }
+        Buffer buffer = Buffer.buffer();
+        buffer.appendBytes(MESSAGES_START);
+        boolean first = true;
+        for(ChatMessage chatMessage : messages) {
+            if(!first) {
+                buffer.appendBytes(MESSAGES_SEPARATOR);
+            }
+            buffer.appendBuffer(ChatMessageCodec.INSTANCE.toClientBuffer(chatMessage));
+            first = false;
+        }
+        buffer.appendBytes(MESSAGES_END);
+        return buffer;
     }
 
     public String toString() {
@@ -13,21 +13,33 @@ public class ChatEnvelopeCodec implements MessageCodec<ChatEnvelope, ChatEnvelop
     public static final ChatEnvelopeCodec INSTANCE = new ChatEnvelopeCodec();
 
     private final JsonObjectMessageCodec jsonCodec = new JsonObjectMessageCodec();
+    private volatile EventServerVerticle.WireFormat wireFormat = EventServerVerticle.WireFormat.JSON;
+
+    public void setWireFormat(EventServerVerticle.WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
 
     @Override
     public void encodeToWire(Buffer buffer, ChatEnvelope chatEnvelope) {
-        jsonCodec.encodeToWire(buffer, chatEnvelope.toJson());
+        if (wireFormat == EventServerVerticle.WireFormat.BINARY) {
+            BinaryChatCodec.INSTANCE.encodeEnvelope(buffer, chatEnvelope);
+        } else {
+            jsonCodec.encodeToWire(buffer, chatEnvelope.toJson());
+        }
     }
 
     @Override
     public ChatEnvelope decodeFromWire(int pos, Buffer buffer) {
+        if (BinaryChatCodec.isBinary(pos, buffer)) {
+            return BinaryChatCodec.INSTANCE.decodeEnvelope(pos, buffer);
+        }
         JsonObject json = jsonCodec.decodeFromWire(pos, buffer);
         return ChatEnvelope.fromJson(json);
     }
 
     @Override
     public ChatEnvelope transform(ChatEnvelope chatEnvelope) {
-        return chatEnvelope.copy();
+        return chatEnvelope;
     }
 
     @Override
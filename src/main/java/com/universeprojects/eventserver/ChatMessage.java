@@ -1,18 +1,87 @@
 package com.universeprojects.eventserver;
 
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Immutable chat-message. Instances are shared between all local consumers, so additionalData must not be
+ * modified. The constructor copies the given additionalData, so the caller can keep using its own object.
+ * Changes are made with the with*-methods which return a new instance.
+ */
 public class ChatMessage {
-    public final List<String> targetUserIds = new ArrayList<>();
-    public String senderUserId;
-    public String senderDisplayName;
-    public String channel;
-    public String text;
-    public Long timestamp;
-    public JsonObject additionalData;
+    public static final String DATA_HISTORY = "__history";
+    public static final String DATA_HISTORY_ID = "__historyId";
+    public static final String DATA_SEQUENCE = "__sequence";
+
+    public final List<String> targetUserIds;
+    public final String senderUserId;
+    public final String senderDisplayName;
+    public final String channel;
+    public final String text;
+    public final Long timestamp;
+    public final JsonObject additionalData;
+    volatile Buffer clientBuffer;
+
+    public ChatMessage(String senderUserId, String senderDisplayName, String channel, String text, Long timestamp, JsonObject additionalData, Collection<String> targetUserIds) {
+        this(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds, true);
+    }
+
+    private ChatMessage(String senderUserId, String senderDisplayName, String channel, String text, Long timestamp, JsonObject additionalData, Collection<String> targetUserIds, boolean copyAdditionalData) {
+        this.senderUserId = senderUserId;
+        this.senderDisplayName = senderDisplayName;
+        this.channel = channel;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.additionalData = copyAdditionalData && additionalData != null ? additionalData.copy() : additionalData;
+        this.targetUserIds = targetUserIds == null || targetUserIds.isEmpty() ?
+            Collections.emptyList() :
+            Collections.unmodifiableList(new ArrayList<>(targetUserIds));
+    }
+
+    /**
+     * Creates a message that takes over additionalData without copying it. Used by the codecs, which decode a new
+     * object for every message.
+     */
+    static ChatMessage decoded(String senderUserId, String senderDisplayName, String channel, String text, Long timestamp, JsonObject additionalData, Collection<String> targetUserIds) {
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds, false);
+    }
+
+    public ChatMessage withText(String text) {
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds, false);
+    }
+
+    public ChatMessage withTimestamp(Long timestamp) {
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds, false);
+    }
+
+    public ChatMessage withAdditionalData(JsonObject additionalData) {
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds);
+    }
+
+    public ChatMessage withSequence(long sequence) {
+        final JsonObject data = additionalData != null ? additionalData.copy() : new JsonObject();
+        data.put(DATA_SEQUENCE, sequence);
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, data, targetUserIds, false);
+    }
+
+    /**
+     * The number of the message within its channel, null for direct messages and messages stored before they were
+     * numbered.
+     */
+    public Long getSequence() {
+        return additionalData != null ? additionalData.getLong(DATA_SEQUENCE) : null;
+    }
+
+    public ChatMessage asHistory() {
+        final JsonObject data = additionalData != null ? additionalData.copy() : new JsonObject();
+        data.put(DATA_HISTORY, true);
+        return new ChatMessage(senderUserId, senderDisplayName, channel, text, timestamp, data, targetUserIds, false);
+    }
 
     public String toString() {
         return ChatMessageCodec.INSTANCE.toJson(this).encode();
@@ -1,71 +1,194 @@
 package com.universeprojects.eventserver;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.netty.buffer.ByteBufInputStream;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.MessageCodec;
 import io.vertx.core.eventbus.impl.codecs.JsonObjectMessageCodec;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 
 public class ChatMessageCodec implements MessageCodec<ChatMessage, ChatMessage> {
 
     public static final ChatMessageCodec INSTANCE = new ChatMessageCodec();
 
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
     private final JsonObjectMessageCodec jsonCodec = new JsonObjectMessageCodec();
+    private volatile EventServerVerticle.WireFormat wireFormat = EventServerVerticle.WireFormat.JSON;
+
+    public void setWireFormat(EventServerVerticle.WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
 
     public JsonObject toJson(ChatMessage chatMessage) {
         return toJson(chatMessage, true);
     }
 
+    /**
+     * The json shares the additionalData of the message, which is shared by all its copies, so it must be encoded
+     * and not modified.
+     */
     public JsonObject toJson(ChatMessage chatMessage, boolean includeTargetUsers) {
         JsonObject json = new JsonObject();
         json.put("senderUserId", chatMessage.senderUserId);
         json.put("senderDisplayName", chatMessage.senderDisplayName);
         if(includeTargetUsers) {
-            json.put("targetUserIds", new JsonArray(new ArrayList<>(chatMessage.targetUserIds)));
+            json.put("targetUserIds", new JsonArray(chatMessage.targetUserIds));
         }
         json.put("channel", chatMessage.channel);
         json.put("text", chatMessage.text);
         json.put("timestamp", chatMessage.timestamp);
         if(chatMessage.additionalData != null) {
-            json.put("additionalData", chatMessage.additionalData.copy());
+            json.put("additionalData", chatMessage.additionalData);
         }
         return json;
     }
 
-    public ChatMessage fromJson(JsonObject json) {
-        ChatMessage chatMessage = new ChatMessage();
-        chatMessage.senderUserId = json.getString("senderUserId");
-        chatMessage.senderDisplayName = json.getString("senderDisplayName");
+    /**
+     * The message as it is sent to clients, encoded once and shared by all receivers of this instance.
+     */
+    public Buffer toClientBuffer(ChatMessage chatMessage) {
+        Buffer buffer = chatMessage.clientBuffer;
+        if(buffer == null) {
+            buffer = toJson(chatMessage, false).toBuffer();
+            chatMessage.clientBuffer = buffer;
+        }
+        return buffer;
+    }
 
+    /**
+     * The message takes over the additionalData of the json, which must not be used afterwards. All callers pass json
+     * they just decoded.
+     */
+    public ChatMessage fromJson(JsonObject json) {
         final JsonArray targetUserIds = json.getJsonArray("targetUserIds");
-        if(targetUserIds != null) {
-            //noinspection unchecked
-            chatMessage.targetUserIds.addAll(targetUserIds.getList());
+        List<String> targetUserIdList = null;
+        if (targetUserIds != null) {
+            targetUserIdList = new ArrayList<>(targetUserIds.size());
+            for (int i = 0; i < targetUserIds.size(); i++) {
+                targetUserIdList.add(targetUserIds.getString(i));
+            }
         }
+        return ChatMessage.decoded(
+            json.getString("senderUserId"),
+            json.getString("senderDisplayName"),
+            json.getString("channel"),
+            json.getString("text"),
+            json.getLong("timestamp"),
+            json.getJsonObject("additionalData"),
+            targetUserIdList);
+    }
 
-        chatMessage.channel = json.getString("channel");
-        chatMessage.text = json.getString("text");
-        chatMessage.timestamp = json.getLong("timestamp");
-        chatMessage.additionalData = json.getJsonObject("additionalData");
-        return chatMessage;
+    /**
+     * Reads a message directly from its json-representation, without building a JsonObject first.
+     */
+    public ChatMessage fromJson(Buffer buffer) {
+        try (JsonParser parser = Json.mapper.getFactory().createParser(new ByteBufInputStream(buffer.getByteBuf()))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DecodeException("Expected a json-object for a chat-message");
+            }
+            String senderUserId = null;
+            String senderDisplayName = null;
+            String channel = null;
+            String text = null;
+            Long timestamp = null;
+            JsonObject additionalData = null;
+            List<String> targetUserIds = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "senderUserId":
+                        senderUserId = readString(parser, token);
+                        break;
+                    case "senderDisplayName":
+                        senderDisplayName = readString(parser, token);
+                        break;
+                    case "channel":
+                        channel = readString(parser, token);
+                        break;
+                    case "text":
+                        text = readString(parser, token);
+                        break;
+                    case "timestamp":
+                        timestamp = token == JsonToken.VALUE_NULL ? null : parser.getLongValue();
+                        break;
+                    case "additionalData":
+                        if (token != JsonToken.VALUE_NULL) {
+                            additionalData = new JsonObject(Json.mapper.<Map<String, Object>>readValue(parser, MAP_TYPE));
+                        }
+                        break;
+                    case "targetUserIds":
+                        targetUserIds = readStrings(parser, token);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return ChatMessage.decoded(senderUserId, senderDisplayName, channel, text, timestamp, additionalData, targetUserIds);
+        } catch (IOException ex) {
+            throw new DecodeException("Failed to decode chat-message: " + ex.getMessage());
+        }
+    }
+
+    private String readString(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != JsonToken.VALUE_STRING) {
+            throw new DecodeException("Expected a string for " + parser.getCurrentName());
+        }
+        return parser.getText();
+    }
+
+    private List<String> readStrings(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            throw new DecodeException("Expected an array for " + parser.getCurrentName());
+        }
+        final List<String> strings = new ArrayList<>();
+        JsonToken elementToken;
+        while ((elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+            strings.add(readString(parser, elementToken));
+        }
+        return strings;
     }
 
     @Override
     public void encodeToWire(Buffer buffer, ChatMessage chatMessage) {
-        jsonCodec.encodeToWire(buffer, toJson(chatMessage));
+        if (wireFormat == EventServerVerticle.WireFormat.BINARY) {
+            BinaryChatCodec.INSTANCE.encodeMessage(buffer, chatMessage);
+        } else {
+            jsonCodec.encodeToWire(buffer, toJson(chatMessage));
+        }
     }
 
     @Override
     public ChatMessage decodeFromWire(int pos, Buffer buffer) {
+        if (BinaryChatCodec.isBinary(pos, buffer)) {
+            return BinaryChatCodec.INSTANCE.decodeMessage(pos, buffer);
+        }
         JsonObject json = jsonCodec.decodeFromWire(pos, buffer);
         return fromJson(json);
     }
 
     @Override
     public ChatMessage transform(ChatMessage chatMessage) {
-        return fromJson(toJson(chatMessage));
+        return chatMessage;
     }
 
     @Override
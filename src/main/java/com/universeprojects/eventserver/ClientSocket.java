@@ -0,0 +1,174 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A socket together with the context that owns it.
+ * Writes must happen on the owning context; callers that write to many sockets group them by context, single frames
+ * can be handed over with {@link #send}. Frames that can't be written because the socket's write-queue
+ * is full are kept in a bounded outbound queue which is handled according to the {@link OutboundQueuePolicy}.
+ */
+public class ClientSocket {
+    private static final Gauge GAUGE_QUEUED_BYTES = Gauge.build().name("socket_outbound_queued_bytes").help("Bytes queued for slow sockets").register();
+    private static final Counter COUNTER_DROPPED = Counter.build().name("socket_outbound_dropped_messages_total").help("Frames dropped for slow sockets").labelNames("policy").register();
+    private static final Counter COUNTER_DISCONNECTS = Counter.build().name("socket_outbound_disconnects_total").help("Sockets closed because they could not keep up").register();
+
+    public final SockJSSocket socket;
+    public final Context context;
+    private final OutboundQueuePolicy policy;
+    private final Deque<Buffer> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long overLimitSince = 0;
+    private Long disconnectTimerId;
+    private boolean closed = false;
+
+    public ClientSocket(SockJSSocket socket, Context context, OutboundQueuePolicy policy) {
+        this.socket = socket;
+        this.context = context;
+        this.policy = policy;
+    }
+
+    public boolean isOnContext() {
+        return Vertx.currentContext() == context;
+    }
+
+    /**
+     * Writes the frame on the owning context.
+     */
+    public void send(Buffer buffer) {
+        if (isOnContext()) {
+            write(buffer);
+        } else {
+            context.runOnContext((ignored) -> write(buffer));
+        }
+    }
+
+    /**
+     * Writes the frame. Must be called on the owning context.
+     */
+    public void write(Buffer buffer) {
+        if (!isOnContext()) {
+            throw new IllegalStateException("Write to " + this + " outside of its context");
+        }
+        if (closed) {
+            return;
+        }
+        if (queue.isEmpty() && !socket.writeQueueFull()) {
+            socket.write(buffer);
+            return;
+        }
+        if (queue.isEmpty()) {
+            socket.drainHandler((ignored) -> drain());
+        }
+        queue.addLast(buffer);
+        addQueuedBytes(buffer.length());
+        if (queuedBytes > policy.maxBytes) {
+            handleOverflow();
+        }
+    }
+
+    /**
+     * Discards all queued frames. Called once the socket is gone.
+     */
+    public void release() {
+        if (!isOnContext()) {
+            context.runOnContext((ignored) -> release());
+            return;
+        }
+        closed = true;
+        clearQueue();
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && !socket.writeQueueFull()) {
+            final Buffer buffer = queue.pollFirst();
+            addQueuedBytes(-buffer.length());
+            socket.write(buffer);
+        }
+        if (queuedBytes <= policy.maxBytes) {
+            overLimitSince = 0;
+            cancelDisconnectTimer();
+        }
+    }
+
+    private void handleOverflow() {
+        switch (policy.overflow) {
+            case DROP_OLDEST:
+                while (queuedBytes > policy.maxBytes && queue.size() > 1) {
+                    dropFirst();
+                }
+                break;
+            case CONFLATE:
+                while (queue.size() > 1) {
+                    dropFirst();
+                }
+                break;
+            case DISCONNECT:
+                if (overLimitSince == 0) {
+                    overLimitSince = System.currentTimeMillis();
+                    disconnectTimerId = context.owner().setTimer(policy.disconnectAfter, (ignored) -> {
+                        disconnectTimerId = null;
+                        if (overLimitSince != 0) {
+                            disconnect();
+                        }
+                    });
+                } else if (System.currentTimeMillis() - overLimitSince >= policy.disconnectAfter) {
+                    disconnect();
+                }
+                break;
+        }
+    }
+
+    private void dropFirst() {
+        final Buffer buffer = queue.pollFirst();
+        addQueuedBytes(-buffer.length());
+        COUNTER_DROPPED.labels(policy.overflow.name()).inc();
+    }
+
+    private void disconnect() {
+        if (closed) {
+            return;
+        }
+        COUNTER_DISCONNECTS.inc();
+        COUNTER_DROPPED.labels(policy.overflow.name()).inc(queue.size());
+        closed = true;
+        clearQueue();
+        try {
+            socket.close();
+        } catch (IllegalStateException ignored) {
+            //Socket already closed
+        }
+    }
+
+    private void clearQueue() {
+        cancelDisconnectTimer();
+        queue.clear();
+        addQueuedBytes(-queuedBytes);
+        overLimitSince = 0;
+    }
+
+    private void cancelDisconnectTimer() {
+        if (disconnectTimerId != null) {
+            context.owner().cancelTimer(disconnectTimerId);
+            disconnectTimerId = null;
+        }
+    }
+
+    private void addQueuedBytes(long bytes) {
+        queuedBytes += bytes;
+        GAUGE_QUEUED_BYTES.inc(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "ClientSocket{" + socket.writeHandlerID() + "}";
+    }
+}
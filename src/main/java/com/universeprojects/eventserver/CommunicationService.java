@@ -1,6 +1,5 @@
 package com.universeprojects.eventserver;
 
-import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
@@ -76,18 +75,16 @@ public abstract class CommunicationService {
     }
 
     protected void sendInsideMessage(String insideChannel, String outsideChannel, String userName, String text, Long timestamp) {
-        String address = verticle.generateChannelAddress(insideChannel);
-        ChatMessage chatMessage = new ChatMessage();
-        chatMessage.channel = insideChannel;
-        chatMessage.senderDisplayName = userName;
-        chatMessage.senderUserId = "remote:"+outsideChannel;
-        chatMessage.text = text;
-        chatMessage.timestamp = timestamp;
-        chatMessage.additionalData = new JsonObject().put(DATA_MARKER_FROM + serviceName , true);
-        EscapingService.INSTANCE.escapeHtml(chatMessage, false);
+        final ChatMessage chatMessage = EscapingService.INSTANCE.escapeHtml(new ChatMessage(
+            "remote:"+outsideChannel,
+            userName,
+            insideChannel,
+            text,
+            timestamp,
+            new JsonObject().put(DATA_MARKER_FROM + serviceName , true),
+            null), false);
         verticle.logConnectionEvent(() -> "Publishing message from remote channel "+outsideChannel+" to channel "+insideChannel+": "+chatMessage);
-        verticle.eventBus.publish(address, chatMessage);
-        verticle.storeChatHistory(insideChannel, Collections.singletonList(chatMessage));
+        verticle.publishChannelMessages(insideChannel, Collections.singletonList(chatMessage));
     }
 
     @SuppressWarnings("unused")
@@ -143,14 +140,19 @@ public abstract class CommunicationService {
         for(Map.Entry<String, String> entry : outgoingChannelMap.entrySet()) {
             String insideChannel = entry.getKey();
             String outsideChannel = entry.getValue();
-            verticle.eventBus.<ChatMessage>consumer(verticle.generateChannelAddress(insideChannel),
-                    (message) -> processChannelMessage(message, outsideChannel)
+            verticle.messageRouter.registerChannel(insideChannel,
+                    (envelope) -> processChannelMessages(envelope, outsideChannel)
             );
         }
     }
 
-    private void processChannelMessage(Message<ChatMessage> message, String remoteChannel) {
-        ChatMessage chatMessage = message.body();
+    private void processChannelMessages(ChatEnvelope envelope, String remoteChannel) {
+        for(ChatMessage chatMessage : envelope.getMessages()) {
+            processChannelMessage(chatMessage, remoteChannel);
+        }
+    }
+
+    private void processChannelMessage(ChatMessage chatMessage, String remoteChannel) {
         String channel = chatMessage.channel;
         if(chatMessage.text == null) {
             return;
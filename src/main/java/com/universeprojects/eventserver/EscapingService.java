@@ -1,66 +1,33 @@
 package com.universeprojects.eventserver;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
-@SuppressWarnings("RegExpRedundantEscape")
+/**
+ * Translates the supported html-tags (a, b, strong, i, em, br) into plain text or slack-markdown.
+ * This is done in a single scan of the text. The result is the same as applying one regex-replacement per tag in
+ * the order a, b, strong, i, em, br: an element is only translated if its content contains no other tags at the
+ * time its replacement would have run, that is if it only contains elements that come earlier in that order.
+ */
 public class EscapingService {
     public static final EscapingService INSTANCE = new EscapingService();
 
-    private final Pattern linkPattern = Pattern.compile("<\\s*a\\s+href=\"([^\"]*)\"\\s*>([^<]+)<\\/a\\s*>");
-    private final Pattern boldPattern = Pattern.compile("<\\s*b\\s*>([^<]+)<\\/b\\s*>");
-    private final Pattern strongPattern = Pattern.compile("<\\s*strong\\s*>([^<]+)<\\/strong\\s*>");
-    private final Pattern italicPattern = Pattern.compile("<\\s*i\\s*>([^<]+)<\\/i\\s*>");
-    private final Pattern emPattern = Pattern.compile("<\\s*em\\s*>([^<]+)<\\/em\\s*>");
+    private static final int LINK = 0;
+    private static final String[] TAG_NAMES = {"a", "b", "strong", "i", "em"};
+    private static final String[] MARKDOWN_SYMBOLS = {null, "*", "*", "_", "_"};
+    private static final String LINK_START_MARKER = "!!l!!";
+    private static final String LINK_END_MARKER = "!!g!!";
+    private static final String MARKER_PREFIX = "!!";
 
     public String escapeHtml(String message, boolean translateToMarkdown) {
         String text = message;
-        final Matcher linkMatcher = linkPattern.matcher(text);
-        if(translateToMarkdown) {
-            text = linkMatcher.replaceAll("!!l!!$1|$2!!g!!");
-        } else {
-            text = linkMatcher.replaceAll("$2");
-        }
-
-        final Matcher boldMatcher = boldPattern.matcher(text);
-        if(translateToMarkdown) {
-            text = boldMatcher.replaceAll("*$1*");
-        } else {
-            text = boldMatcher.replaceAll("$1");
-        }
-
-        final Matcher strongMatcher = strongPattern.matcher(text);
-        if(translateToMarkdown) {
-            text = strongMatcher.replaceAll("*$1*");
-        } else {
-            text = strongMatcher.replaceAll("$1");
-        }
-
-        final Matcher italicMatcher = italicPattern.matcher(text);
-        if(translateToMarkdown) {
-            text = italicMatcher.replaceAll("_$1_");
-        } else {
-            text = italicMatcher.replaceAll("$1");
-        }
-
-        final Matcher emMatcher = emPattern.matcher(text);
-        if(translateToMarkdown) {
-            text = emMatcher.replaceAll("_$1_");
-        } else {
-            text = emMatcher.replaceAll("$1");
-        }
-
-        if(translateToMarkdown) {
-            text = text.replaceAll("<\\s*br\\s*/?>", "\\n");
-        } else {
-            text = text.replaceAll("<\\s*br\\s*/?>", "");
+        if (text.indexOf('<') >= 0) {
+            text = new Translation(text, translateToMarkdown).translate();
         }
 
         text = escapeAllHtml(text);
 
-        if(translateToMarkdown) {
-            text = text.replaceAll("!!l!!", "<");
-            text = text.replaceAll("!!g!!", ">");
+        if (translateToMarkdown && text.contains(MARKER_PREFIX)) {
+            text = replaceMarkers(text);
         }
 
         return text;
@@ -75,7 +42,258 @@ public class EscapingService {
     }
 
     public ChatMessage escapeHtml(ChatMessage chatMessage, boolean translateToMarkdown) {
-        chatMessage.text = escapeHtml(chatMessage.text, translateToMarkdown);
-        return chatMessage;
+        return chatMessage.withText(escapeHtml(chatMessage.text, translateToMarkdown));
+    }
+
+    /**
+     * Replaces all link-start markers and then all link-end markers, the same way two replaceAll-calls would.
+     */
+    private static String replaceMarkers(String text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        int index = 0;
+        int marker;
+        while ((marker = text.indexOf(LINK_START_MARKER, index)) >= 0) {
+            builder.append(text, index, marker).append('<');
+            index = marker + LINK_START_MARKER.length();
+        }
+        builder.append(text, index, text.length());
+
+        int write = 0;
+        int read = 0;
+        final int length = builder.length();
+        while (read < length) {
+            if (regionMatches(builder, read, LINK_END_MARKER)) {
+                builder.setCharAt(write++, '>');
+                read += LINK_END_MARKER.length();
+            } else {
+                builder.setCharAt(write++, builder.charAt(read++));
+            }
+        }
+        builder.setLength(write);
+        return builder.toString();
+    }
+
+    private static boolean regionMatches(CharSequence text, int index, String value) {
+        if (index + value.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (text.charAt(index + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int skipWhitespace(String text, int index) {
+        while (index < text.length() && isWhitespace(text.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * State of a single translation. Open elements are kept on a stack. Their opening tag is written to the output
+     * as it is and replaced once the matching closing tag is found and the element can be translated.
+     */
+    private static class Translation {
+        private final String text;
+        private final boolean translateToMarkdown;
+        private final StringBuilder output;
+        private int[] types = new int[4];
+        private int[] tagStarts = new int[4];
+        private int[] contentStarts = new int[4];
+        private int[] hrefStarts = new int[4];
+        private int[] hrefEnds = new int[4];
+        private boolean[] translatable = new boolean[4];
+        private int size = 0;
+        private int matchedType;
+        private int matchedHrefStart;
+        private int matchedHrefEnd;
+
+        private Translation(String text, boolean translateToMarkdown) {
+            this.text = text;
+            this.translateToMarkdown = translateToMarkdown;
+            this.output = new StringBuilder(text.length() + 16);
+        }
+
+        private String translate() {
+            int index = 0;
+            final int length = text.length();
+            while (index < length) {
+                final int tag = text.indexOf('<', index);
+                if (tag < 0) {
+                    output.append(text, index, length);
+                    break;
+                }
+                output.append(text, index, tag);
+                index = processTag(tag);
+            }
+            return output.toString();
+        }
+
+        /**
+         * Processes the '<' at the given index and returns the index to continue at.
+         */
+        private int processTag(int index) {
+            int end = matchBreak(index);
+            if (end > 0) {
+                //Breaks are replaced last, so elements around them can't be translated
+                markAllUntranslatable();
+                if (translateToMarkdown) {
+                    output.append('\n');
+                }
+                return end;
+            }
+            if (size > 0) {
+                end = matchClose(index, types[size - 1]);
+                if (end > 0) {
+                    closeElement(index, end);
+                    return end;
+                }
+            }
+            end = matchOpen(index);
+            if (end > 0) {
+                push(matchedType, matchedHrefStart, matchedHrefEnd);
+                output.append(text, index, end);
+                contentStarts[size - 1] = output.length();
+                return end;
+            }
+            markAllUntranslatable();
+            output.append('<');
+            return index + 1;
+        }
+
+        private void closeElement(int index, int end) {
+            final int element = --size;
+            final int type = types[element];
+            final int tagStart = tagStarts[element];
+            final int contentStart = contentStarts[element];
+            if (!translatable[element] || output.length() == contentStart) {
+                output.append(text, index, end);
+                markAllUntranslatable();
+                return;
+            }
+
+            if (!translateToMarkdown) {
+                output.delete(tagStart, contentStart);
+            } else if (type == LINK) {
+                final int hrefStart = hrefStarts[element];
+                final int hrefEnd = hrefEnds[element];
+                output.replace(tagStart, contentStart, LINK_START_MARKER);
+                output.insert(tagStart + LINK_START_MARKER.length(), text, hrefStart, hrefEnd);
+                output.insert(tagStart + LINK_START_MARKER.length() + hrefEnd - hrefStart, '|');
+                output.append(LINK_END_MARKER);
+                if (text.lastIndexOf('<', hrefEnd - 1) >= hrefStart) {
+                    markAllUntranslatable();
+                }
+            } else {
+                output.replace(tagStart, contentStart, MARKDOWN_SYMBOLS[type]);
+                output.append(MARKDOWN_SYMBOLS[type]);
+            }
+
+            //Elements replaced after this one still saw its tags
+            for (int i = 0; i < size; i++) {
+                if (types[i] <= type) {
+                    translatable[i] = false;
+                }
+            }
+        }
+
+        private void markAllUntranslatable() {
+            for (int i = 0; i < size; i++) {
+                translatable[i] = false;
+            }
+        }
+
+        private void push(int type, int hrefStart, int hrefEnd) {
+            if (size == types.length) {
+                final int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                tagStarts = Arrays.copyOf(tagStarts, capacity);
+                contentStarts = Arrays.copyOf(contentStarts, capacity);
+                hrefStarts = Arrays.copyOf(hrefStarts, capacity);
+                hrefEnds = Arrays.copyOf(hrefEnds, capacity);
+                translatable = Arrays.copyOf(translatable, capacity);
+            }
+            types[size] = type;
+            tagStarts[size] = output.length();
+            hrefStarts[size] = hrefStart;
+            hrefEnds[size] = hrefEnd;
+            translatable[size] = true;
+            size++;
+        }
+
+        /**
+         * Matches {@code <\s*br\s*\/?>}
+         */
+        private int matchBreak(int index) {
+            int i = skipWhitespace(text, index + 1);
+            if (!text.startsWith("br", i)) {
+                return -1;
+            }
+            i = skipWhitespace(text, i + 2);
+            if (i < text.length() && text.charAt(i) == '/') {
+                i++;
+            }
+            return matchEnd(i);
+        }
+
+        /**
+         * Matches {@code <\/name\s*>}
+         */
+        private int matchClose(int index, int type) {
+            final String name = TAG_NAMES[type];
+            if (index + 1 >= text.length() || text.charAt(index + 1) != '/' || !text.startsWith(name, index + 2)) {
+                return -1;
+            }
+            return matchEnd(skipWhitespace(text, index + 2 + name.length()));
+        }
+
+        /**
+         * Matches {@code <\s*name\s*>} or {@code <\s*a\s+href="([^"]*)"\s*>} and sets the matched type and href.
+         */
+        private int matchOpen(int index) {
+            final int nameStart = skipWhitespace(text, index + 1);
+            for (int type = 0; type < TAG_NAMES.length; type++) {
+                final String name = TAG_NAMES[type];
+                if (!text.startsWith(name, nameStart)) {
+                    continue;
+                }
+                final int nameEnd = nameStart + name.length();
+                final int end = type == LINK ? matchLinkAttributes(nameEnd) : matchEnd(skipWhitespace(text, nameEnd));
+                if (end > 0) {
+                    matchedType = type;
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        private int matchLinkAttributes(int index) {
+            int i = skipWhitespace(text, index);
+            if (i == index || !text.startsWith("href=\"", i)) {
+                return -1;
+            }
+            final int hrefStart = i + 6;
+            final int hrefEnd = text.indexOf('"', hrefStart);
+            if (hrefEnd < 0) {
+                return -1;
+            }
+            matchedHrefStart = hrefStart;
+            matchedHrefEnd = hrefEnd;
+            return matchEnd(skipWhitespace(text, hrefEnd + 1));
+        }
+
+        private int matchEnd(int index) {
+            if (index < text.length() && text.charAt(index) == '>') {
+                return index + 1;
+            }
+            return -1;
+        }
     }
 }
@@ -17,11 +17,16 @@ import io.vertx.ext.web.handler.sockjs.SockJSHandler;
 import io.vertx.ext.web.handler.sockjs.SockJSHandlerOptions;
 import io.vertx.ext.web.sstore.LocalSessionStore;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 public class EventServerVerticle extends AbstractVerticle {
 
@@ -33,7 +38,13 @@ public class EventServerVerticle extends AbstractVerticle {
     public static final String CONFIG_LOG_CONNECTIONS = "log_connections";
     public static final String CONFIG_LOG_STORAGE = "log_storage";
     public static final String CONFIG_CHANNEL_HISTORY_SIZE = "channel_history_size";
+    public static final String CONFIG_CHANNEL_HISTORY_CONNECT_SIZE = "channel_history_connect_size";
     public static final String CONFIG_REDIS_ENABLED = "redis_enabled";
+    public static final String CONFIG_REDIS_HISTORY_TYPE = "redis_history_type";
+    public static final String CONFIG_HISTORY_MAPPED_ENABLED = "history_mapped_enabled";
+    public static final String CONFIG_EVENTBUS_ROUTING = "eventbus_routing";
+    public static final String CONFIG_EVENTBUS_WIRE_FORMAT = "eventbus_wire_format";
+    public static final String CONFIG_EVENTBUS_LEGACY_CHANNELS = "eventbus_legacy_channels";
 
     private static final int DEFAULT_HISTORY_SIZE = 100;
 
@@ -41,22 +52,42 @@ public class EventServerVerticle extends AbstractVerticle {
         PROD, TEST, TEST_CLIENT
     }
 
+    public enum RoutingMode {
+        ADDRESS, NODE
+    }
+
+    public enum WireFormat {
+        JSON, BINARY
+    }
+
+    public enum RedisHistoryType {
+        LIST, STREAM
+    }
+
     public EventBus eventBus;
+    public MessageRouter messageRouter;
     public SockJSHandler sockJSHandler;
     public AuthService authService;
     public SockJSSocketHandler sockJSSocketHandler;
     @SuppressWarnings("FieldCanBeLocal")
     public SharedDataService sharedDataService;
+    public ChannelSequencer channelSequencer;
     public ServerMode serverMode;
     public SlackCommunicationService slackCommunicationService;
     public DiscordCommunicationService discordCommunicationService;
+    public HistoryPolicies historyPolicies;
     public HistoryService historyService;
+    public HistoryCache historyCache;
+    public HistoryWriteBehind historyWriteBehind;
     public ChannelService channelService;
     public UserService userService;
     public SessionService sessionService;
+    public OutboundQueuePolicy outboundQueuePolicy;
+    public IngestionQueue ingestionQueue;
     private boolean logConnections = false;
     private boolean logStorage = false;
     private int channelHistorySize = DEFAULT_HISTORY_SIZE;
+    private int channelHistoryConnectSize = DEFAULT_HISTORY_SIZE;
 
     @Override
     public void start() {
@@ -66,15 +97,26 @@ public class EventServerVerticle extends AbstractVerticle {
         final int port = Config.getInt(CONFIG_PORT, 6969);
         serverMode = Config.getEnum(CONFIG_MODE, ServerMode.class, ServerMode.PROD);
         channelHistorySize = Config.getInt(CONFIG_CHANNEL_HISTORY_SIZE, DEFAULT_HISTORY_SIZE);
+        channelHistoryConnectSize = Math.min(Config.getInt(CONFIG_CHANNEL_HISTORY_CONNECT_SIZE, channelHistorySize), channelHistorySize);
+        historyPolicies = new HistoryPolicies(channelHistorySize);
         final boolean enableRedis = Config.getBoolean(CONFIG_REDIS_ENABLED, false);
-        if(enableRedis) {
-            historyService = new RedisHistoryService();
+        final HistoryService historyStore;
+        if(Config.getBoolean(CONFIG_HISTORY_MAPPED_ENABLED, false)) {
+            historyStore = new MappedHistoryService(this);
+        } else if(enableRedis && Config.getEnum(CONFIG_REDIS_HISTORY_TYPE, RedisHistoryType.class, RedisHistoryType.LIST) == RedisHistoryType.STREAM) {
+            historyStore = new RedisStreamHistoryService(historyPolicies);
+        } else if(enableRedis) {
+            historyStore = new RedisHistoryService(historyPolicies);
         } else {
-            historyService = new HazelcastHistoryService(this);
+            historyStore = new HazelcastHistoryService(this);
         }
+        historyWriteBehind = new HistoryWriteBehind(vertx, historyStore);
+        historyCache = new HistoryCache(historyWriteBehind, historyPolicies);
+        historyService = historyCache;
         this.userService = new UserService(this);
         this.channelService = new ChannelService(this);
         this.sessionService = new SessionService();
+        this.outboundQueuePolicy = new OutboundQueuePolicy();
         final HttpServer server = vertx.createHttpServer();
         final Router router = Router.router(vertx);
 
@@ -98,10 +140,24 @@ public class EventServerVerticle extends AbstractVerticle {
 
         eventBus = vertx.eventBus();
         sharedDataService = new SharedDataService(vertx.sharedData());
+        channelSequencer = new ChannelSequencer(this);
+        final WireFormat wireFormat = Config.getEnum(CONFIG_EVENTBUS_WIRE_FORMAT, WireFormat.class, WireFormat.JSON);
+        ChatMessageCodec.INSTANCE.setWireFormat(wireFormat);
+        ChatEnvelopeCodec.INSTANCE.setWireFormat(wireFormat);
         eventBus.registerDefaultCodec(ChatMessage.class, ChatMessageCodec.INSTANCE);
         eventBus.registerDefaultCodec(ChatEnvelope.class, ChatEnvelopeCodec.INSTANCE);
 
+        final RoutingMode routingMode = Config.getEnum(CONFIG_EVENTBUS_ROUTING, RoutingMode.class, RoutingMode.ADDRESS);
+        if (routingMode == RoutingMode.NODE) {
+            final NodeMessageRouter nodeMessageRouter = new NodeMessageRouter(this);
+            nodeMessageRouter.start();
+            messageRouter = nodeMessageRouter;
+        } else {
+            messageRouter = new AddressMessageRouter(this);
+        }
+
         authService = new AuthService(this);
+        ingestionQueue = new IngestionQueue(vertx);
         sockJSSocketHandler = new SockJSSocketHandler(this);
 
         SockJSHandlerOptions sockJSHandlerOptions = new SockJSHandlerOptions();
@@ -113,9 +169,11 @@ public class EventServerVerticle extends AbstractVerticle {
         final ApiAuthHandler apiAuthHandler = new ApiAuthHandler();
         router.route("/send").handler(apiAuthHandler);
         router.route("/updateUsers").handler(apiAuthHandler);
+        router.route("/history").handler(apiAuthHandler);
 
         router.route("/send").handler(new IncomingMessageHandler(this));
         router.route("/updateUsers").handler(new UpdateUsersHandler(this));
+        router.route("/history").handler(new HistoryPageHandler(this));
 
         slackCommunicationService = new SlackCommunicationService(this, router);
         slackCommunicationService.activate();
@@ -127,7 +185,19 @@ public class EventServerVerticle extends AbstractVerticle {
         log.info("Server started up at http://localhost:" + port);
     }
 
+    @Override
+    public void stop() {
+        historyWriteBehind.flushAll();
+    }
+
     public String generateChannelAddress(String channel) {
+        return "channel.v2." + channel;
+    }
+
+    /**
+     * The address servers before channel-envelopes published single chat-messages to.
+     */
+    public String generateLegacyChannelAddress(String channel) {
         return "channel." + channel;
     }
 
@@ -159,20 +229,139 @@ public class EventServerVerticle extends AbstractVerticle {
         }
     }
 
+    /**
+     * Numbers the messages of a channel that keeps a history, then publishes and stores them.
+     */
+    public void publishChannelMessages(String channel, List<ChatMessage> messages) {
+        final HistoryPolicy policy = historyPolicies.get(channel);
+        if (!policy.history) {
+            messageRouter.publishChannelMessages(channel, ChatEnvelope.forMessages(messages));
+            return;
+        }
+        channelSequencer.assign(channel, messages, (sequenced) -> {
+            sequenced.forEach(ChatMessageCodec.INSTANCE::toClientBuffer);
+            messageRouter.publishChannelMessages(channel, ChatEnvelope.forMessages(sequenced));
+            storeChatHistory(channel, policy, sequenced);
+        });
+    }
+
     public void storeChatHistory(String channel, List<ChatMessage> messages) {
-        if (!shouldStoreMessages(channel)) {
+        storeChatHistory(channel, historyPolicies.get(channel), messages);
+    }
+
+    private void storeChatHistory(String channel, HistoryPolicy policy, List<ChatMessage> messages) {
+        if (!policy.history) {
+            return;
+        }
+        policy.messagesStored(messages.size());
+        historyService.storeChatHistory(channel, policy.maxMessages, messages);
+    }
+
+    /**
+     * Fetches the history of the channels with one fetch per history-policy and applies the policies to the result.
+     */
+    public void fetchHistoryMessages(Set<String> channelNames, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Map<HistoryPolicy, Set<String>> channelsByPolicy = new LinkedHashMap<>();
+        for (String channel : channelNames) {
+            final HistoryPolicy policy = historyPolicies.get(channel);
+            if (policy.history) {
+                channelsByPolicy.computeIfAbsent(policy, (ignored) -> new LinkedHashSet<>()).add(channel);
+            }
+        }
+        if (channelsByPolicy.isEmpty()) {
+            resultHandler.accept(Collections.emptyMap());
+            return;
+        }
+        final Map<String, List<ChatMessage>> fetched = new ConcurrentHashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(channelsByPolicy.size());
+        channelsByPolicy.forEach((policy, channels) -> historyService.fetchAllHistoryMessages(channels, policy.maxMessages, (result) -> {
+            result.forEach((channel, messages) -> fetched.put(channel, policy.apply(messages)));
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            final Map<String, List<ChatMessage>> ordered = new LinkedHashMap<>();
+            for (String channel : channelNames) {
+                final List<ChatMessage> messages = fetched.get(channel);
+                if (messages != null) {
+                    ordered.put(channel, messages);
+                }
+            }
+            resultHandler.accept(ordered);
+        }));
+    }
+
+    /**
+     * Fetches the history of the channels for a client that reconnects with the last sequence-number it received per
+     * channel. For those channels only the messages from that number on are read, as a page of the history. If the
+     * page doesn't start with the client's last message, or may not reach the newest one, the whole history of the
+     * channel is fetched instead, so the client can tell that it is truncated.
+     */
+    public void fetchHistoryMessages(Set<String> channelNames, Map<String, Long> since, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Map<String, Long> pageChannels = new LinkedHashMap<>();
+        for (String channel : channelNames) {
+            final Long last = since.get(channel);
+            if (last != null && historyPolicies.get(channel).history) {
+                pageChannels.put(channel, last);
+            }
+        }
+        if (pageChannels.isEmpty()) {
+            fetchHistoryMessages(channelNames, resultHandler);
+            return;
+        }
+        final Map<String, List<ChatMessage>> pages = new ConcurrentHashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(pageChannels.size());
+        pageChannels.forEach((channel, last) -> {
+            final HistoryPolicy policy = historyPolicies.get(channel);
+            historyService.fetchHistoryPage(channel, policy.maxMessages, null, last - 1, policy.maxMessages, (messages) -> {
+                final List<ChatMessage> page = messages != null ? policy.apply(messages) : null;
+                if (page != null && !page.isEmpty() && last.equals(page.get(0).getSequence()) && page.size() < policy.maxMessages) {
+                    pages.put(channel, page);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    fetchRemainingHistory(channelNames, pages, resultHandler);
+                }
+            });
+        });
+    }
+
+    private void fetchRemainingHistory(Set<String> channelNames, Map<String, List<ChatMessage>> pages, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Set<String> remaining = new LinkedHashSet<>(channelNames);
+        remaining.removeAll(pages.keySet());
+        final Consumer<Map<String, List<ChatMessage>>> merge = (fetched) -> {
+            final Map<String, List<ChatMessage>> ordered = new LinkedHashMap<>();
+            for (String channel : channelNames) {
+                final List<ChatMessage> messages = pages.containsKey(channel) ? pages.get(channel) : fetched.get(channel);
+                if (messages != null) {
+                    ordered.put(channel, messages);
+                }
+            }
+            resultHandler.accept(ordered);
+        };
+        fetchHistoryMessages(remaining, merge);
+    }
+
+    /**
+     * Fetches a page of the history of a channel, see {@link HistoryService#fetchHistoryPage}. The limit is capped at
+     * the history size of the channel's policy.
+     */
+    public void fetchHistoryPage(String channel, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        final HistoryPolicy policy = historyPolicies.get(channel);
+        if (!policy.history) {
+            resultHandler.accept(Collections.emptyList());
             return;
         }
-        historyService.storeChatHistory(channel, channelHistorySize, messages);
+        historyService.fetchHistoryPage(channel, policy.maxMessages, before, after, Math.min(limit, policy.maxMessages),
+            (messages) -> resultHandler.accept(messages != null ? policy.expire(messages) : null));
     }
 
-    public void fetchHistoryMessages(Set<String> channelNames, BiConsumer<String, List<ChatMessage>> messageHandler) {
-        Set<String> channelMessagesWithHistory = channelNames.stream().filter(this::shouldStoreMessages).collect(Collectors.toSet());
-        if(channelMessagesWithHistory.isEmpty()) return;
-        historyService.fetchHistoryMessages(channelNames, channelHistorySize, messageHandler);
+    /**
+     * Amount of messages per channel that is sent to a client when it connects. Older ones can be fetched as pages.
+     */
+    public int getChannelHistoryConnectSize() {
+        return channelHistoryConnectSize;
     }
 
     public boolean shouldStoreMessages(String channel) {
-        return !channel.startsWith("!");
+        return historyPolicies.get(channel).history;
     }
 }
@@ -1,98 +1,106 @@
 package com.universeprojects.eventserver;
 
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.ICompletableFuture;
+import com.hazelcast.core.IMap;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.VertxInternal;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.core.shareddata.AsyncMap;
-import io.vertx.core.shareddata.Lock;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * Keeps the history of every channel as an array of json-encoded messages in a Hazelcast map.
+ * New messages are appended by an entry-processor on the owning member, so storing is a single operation without a
+ * cluster-lock and without sending the existing history over the network. The map is limited by the maxMessages and
+ * maxBytes of the channel's history-policy, not by the node's history.cache.max.bytes.
+ */
 public class HazelcastHistoryService implements HistoryService {
+    public static final String MAP_NAME = "history";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final EventServerVerticle verticle;
+    private final IMap<String, String[]> map;
 
     public HazelcastHistoryService(EventServerVerticle verticle) {
         this.verticle = verticle;
+        final HazelcastClusterManager clusterManager = (HazelcastClusterManager) ((VertxInternal) verticle.getVertx()).getClusterManager();
+        this.map = clusterManager.getHazelcastInstance().getMap(MAP_NAME);
     }
 
     @Override
     public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
-        verticle.sharedDataService.getMessageMap((mapResult) -> {
-            if (mapResult.succeeded()) {
-                final AsyncMap<String, JsonArray> map = mapResult.result();
-                verticle.sharedDataService.getChannelLock(channel, (lockResult) -> {
-                    if (lockResult.succeeded()) {
-                        final Lock lock = lockResult.result();
-                        map.get(channel, (result) -> {
-                            List<JsonObject> list;
-                            if (result.succeeded() && result.result() != null) {
-                                //noinspection unchecked
-                                list = result.result().getList();
-                            } else {
-                                list = new ArrayList<>();
-                            }
+        if (messages.isEmpty()) return;
+        final String[] encoded = new String[messages.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = ChatMessageCodec.INSTANCE.toJson(messages.get(i)).encode();
+        }
+        map.submitToKey(channel, new HistoryAppendProcessor(encoded, historySize, verticle.historyPolicies.get(channel).maxBytes), new ExecutionCallback<Object>() {
+            @Override
+            public void onResponse(Object response) {
+                verticle.logStorageEvent(() -> "Successfully stored " + encoded.length + " messages for channel " + channel);
+            }
 
-                            for (ChatMessage message : messages) {
-                                list.add(ChatMessageCodec.INSTANCE.toJson(message));
-                            }
-                            if (list.size() > historySize) {
-                                list = new ArrayList<>(
-                                    list.subList(list.size() - historySize, list.size())
-                                );
-                            }
-                            final JsonArray newJson = new JsonArray(list);
-                            map.put(channel, newJson, (putResult) -> {
-                                lock.release();
-                                if (putResult.succeeded()) {
-                                    verticle.logStorageEvent(() -> "Successfully stored messages: " + newJson.encode());
-                                } else {
-                                    log.warn("Error storing messages", putResult.cause());
-                                }
-                            });
-                        });
-                    } else {
-                        log.warn("Unable to get message lock", lockResult.cause());
-                    }
-                });
-            } else {
-                log.warn("Error getting message-map", mapResult.cause());
+            @Override
+            public void onFailure(Throwable ex) {
+                log.warn("Error storing messages", ex);
             }
         });
     }
 
     @Override
-    public void fetchHistoryMessages(Set<String> channels, int historySize, BiConsumer<String, List<ChatMessage>> messageHandler) {
-        verticle.sharedDataService.getMessageMap((mapResult) -> {
-            if (mapResult.succeeded()) {
-                final AsyncMap<String, JsonArray> map = mapResult.result();
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Context context = verticle.getVertx().getOrCreateContext();
+        final Map<String, List<ChatMessage>> fetched = new ConcurrentHashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(channels.size());
+        final Runnable onFetched = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
                 for (String channel : channels) {
-                    map.get(channel, (result) -> {
-                        if (result.succeeded() && result.result() != null) {
-                            final JsonArray jsonArray = result.result();
-                            if (jsonArray != null && !jsonArray.isEmpty()) {
-                                final List<ChatMessage> messages = new ArrayList<>();
-                                jsonArray.forEach((messageObj) -> {
-                                    ChatMessage message = ChatMessageCodec.INSTANCE.fromJson((JsonObject) messageObj);
-                                    if(message.additionalData == null) {
-                                        message.additionalData = new JsonObject();
-                                    }
-                                    message.additionalData.put("__history", true);
-                                    messages.add(message);
-                                });
-                                messageHandler.accept(channel, messages);
-                            }
-                        }
-                    });
+                    final List<ChatMessage> messages = fetched.get(channel);
+                    if (messages != null) {
+                        result.put(channel, messages);
+                    }
                 }
-            } else {
-                log.warn("Error getting message-map", mapResult.cause());
+                context.runOnContext((ignored) -> resultHandler.accept(result));
             }
-        });
+        };
+        if (channels.isEmpty()) {
+            context.runOnContext((ignored) -> resultHandler.accept(new LinkedHashMap<>()));
+            return;
+        }
+        for (String channel : channels) {
+            final ICompletableFuture<String[]> future = (ICompletableFuture<String[]>) map.getAsync(channel);
+            future.andThen(new ExecutionCallback<String[]>() {
+                @Override
+                public void onResponse(String[] history) {
+                    final List<ChatMessage> messages = new ArrayList<>();
+                    if (history != null) {
+                        //The history-size might have been larger when the messages were stored
+                        for (int i = Math.max(0, history.length - historySize); i < history.length; i++) {
+                            messages.add(ChatMessageCodec.INSTANCE.fromJson(Buffer.buffer(history[i])).asHistory());
+                        }
+                    }
+                    fetched.put(channel, messages);
+                    onFetched.run();
+                }
+
+                @Override
+                public void onFailure(Throwable ex) {
+                    log.warn("Error fetching messages", ex);
+                    onFetched.run();
+                }
+            });
+        }
     }
 }
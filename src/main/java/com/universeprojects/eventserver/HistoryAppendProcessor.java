@@ -0,0 +1,79 @@
+package com.universeprojects.eventserver;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Appends encoded messages to the history of a channel and trims it to the history-size and, if maxBytes is positive,
+ * to the newest messages whose encoded json fits into maxBytes.
+ * Runs on the member owning the channel (and its backups), so only the new messages are sent over the network.
+ */
+public class HistoryAppendProcessor extends AbstractEntryProcessor<String, String[]> implements DataSerializable {
+    private static final long serialVersionUID = 1L;
+
+    private String[] messages;
+    private int historySize;
+    private long maxBytes;
+
+    @SuppressWarnings("unused")
+    public HistoryAppendProcessor() {
+    }
+
+    public HistoryAppendProcessor(String[] messages, int historySize, long maxBytes) {
+        this.messages = messages;
+        this.historySize = historySize;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, String[]> entry) {
+        final String[] existing = entry.getValue() != null ? entry.getValue() : new String[0];
+        final int size = countFitting(existing, Math.min(existing.length + messages.length, historySize));
+        final String[] history = new String[size];
+        final int fromMessages = Math.min(messages.length, size);
+        final int fromExisting = size - fromMessages;
+        System.arraycopy(existing, existing.length - fromExisting, history, 0, fromExisting);
+        System.arraycopy(messages, messages.length - fromMessages, history, fromExisting, fromMessages);
+        entry.setValue(history);
+        return null;
+    }
+
+    /**
+     * Returns how many of the newest messages, at most size, fit into maxBytes.
+     */
+    private int countFitting(String[] existing, int size) {
+        if (maxBytes <= 0) {
+            return size;
+        }
+        long bytes = 0;
+        int fitting = 0;
+        while (fitting < size) {
+            final String message = fitting < messages.length ? messages[messages.length - 1 - fitting] : existing[existing.length - 1 - (fitting - messages.length)];
+            bytes += 2L * message.length();
+            if (bytes > maxBytes) {
+                break;
+            }
+            fitting++;
+        }
+        return fitting;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeInt(historySize);
+        out.writeLong(maxBytes);
+        out.writeUTFArray(messages);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        historySize = in.readInt();
+        maxBytes = in.readLong();
+        messages = in.readUTFArray();
+    }
+}
@@ -0,0 +1,532 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Per-node cache in front of the history-store.
+ * A channel can only be cached while this node is subscribed to it, because only then the node receives its messages
+ * on the event-bus and can keep the cached history up to date. The history is loaded from the store on the first
+ * fetch; requests arriving while it is loading wait for the same load. Once the channel-limit is exceeded the least
+ * recently used channel is evicted. The byte-limit is the memory-budget of the node for channel-histories: once it is
+ * exceeded, the channel with the largest size times idle-time among the least recently used ones is evicted, so a
+ * large channel goes before several small ones. The history of a channel is trimmed to the byte-limit of its policy.
+ * Evicted channels are loaded again on the next fetch.
+ */
+public class HistoryCache implements HistoryService {
+    public static final String CONFIG_ENABLED = "history_cache_enabled";
+    public static final String CONFIG_MAX_CHANNELS = "history_cache_max_channels";
+    public static final String CONFIG_MAX_BYTES = "history_cache_max_bytes";
+    public static final String CONFIG_LOAD_TIMEOUT = "history_cache_load_timeout";
+
+    private static final int DEFAULT_MAX_CHANNELS = 10000;
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_LOAD_TIMEOUT = 10 * 1000;
+    /**
+     * Amount of least recently used channels the byte-limit evicts from.
+     */
+    private static final int EVICTION_CANDIDATES = 8;
+    /**
+     * Milliseconds a message received while the history isn't loaded is kept for the next load. Other nodes may not
+     * have written it to the store yet when the load reads it, but they have after this time.
+     */
+    private static final long RECEIVED_WINDOW = 60 * 1000;
+
+    private static final Counter COUNTER_REQUESTS = Counter.build().name("history_cache_requests_total").help("Channel-histories fetched through the history-cache").labelNames("result").register();
+    private static final Counter COUNTER_EVICTIONS = Counter.build().name("history_cache_evictions_total").help("Channel-histories evicted from the history-cache").register();
+    private static final Gauge GAUGE_CHANNELS = Gauge.build().name("history_cache_channels").help("Channels with a loaded history in the history-cache").register();
+    private static final Gauge GAUGE_BYTES = Gauge.build().name("history_cache_bytes").help("Estimated size of the messages in the history-cache").register();
+    private static final Gauge GAUGE_POLICY_CHANNELS = Gauge.build().name("history_policy_cached_channels").help("Channels with a loaded history in the history-cache, per policy").labelNames("policy").register();
+    private static final Gauge GAUGE_POLICY_BYTES = Gauge.build().name("history_policy_cached_bytes").help("Estimated size of the messages in the history-cache, per policy").labelNames("policy").register();
+    private static final Counter COUNTER_POLICY_EVICTIONS = Counter.build().name("history_policy_evictions_total").help("Channel-histories evicted from the history-cache, per policy").labelNames("policy").register();
+
+    private final HistoryService store;
+    private final HistoryPolicies policies;
+    private final boolean enabled;
+    private final int maxChannels;
+    private final long maxBytes;
+    private final long loadTimeout;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    public HistoryCache(HistoryService store, HistoryPolicies policies) {
+        this(store,
+            policies,
+            Config.getBoolean(CONFIG_ENABLED, true),
+            Config.getInt(CONFIG_MAX_CHANNELS, DEFAULT_MAX_CHANNELS),
+            Config.getLong(CONFIG_MAX_BYTES, DEFAULT_MAX_BYTES),
+            Config.getLong(CONFIG_LOAD_TIMEOUT, DEFAULT_LOAD_TIMEOUT));
+    }
+
+    public HistoryCache(HistoryService store, HistoryPolicies policies, boolean enabled, int maxChannels, long maxBytes, long loadTimeout) {
+        this.store = store;
+        this.policies = policies;
+        this.enabled = enabled;
+        this.maxChannels = maxChannels;
+        this.maxBytes = maxBytes;
+        this.loadTimeout = loadTimeout;
+    }
+
+    /**
+     * Must be called when this node subscribes to the channel, before the first message of the channel is received.
+     */
+    public void channelSubscribed(String channel) {
+        if (enabled) {
+            entries.put(channel, new Entry(channel, policies.get(channel)));
+        }
+    }
+
+    public void channelUnsubscribed(String channel) {
+        if (!enabled) {
+            return;
+        }
+        final Entry entry = entries.remove(channel);
+        if (entry != null) {
+            synchronized (loaded) {
+                loaded.remove(channel, entry);
+            }
+            entry.reset();
+        }
+    }
+
+    /**
+     * Adds messages this node received for a subscribed channel.
+     */
+    public void channelMessagesReceived(String channel, List<ChatMessage> messages) {
+        if (!enabled) {
+            return;
+        }
+        final Entry entry = entries.get(channel);
+        if (entry != null && messages != null && entry.append(messages)) {
+            evictIfNecessary();
+        }
+    }
+
+    @Override
+    public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
+        //The cache is fed by the messages received on the event-bus, which includes the ones sent by this node
+        store.storeChatHistory(channel, historySize, messages);
+    }
+
+    @Override
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        if (!enabled || channels.isEmpty()) {
+            store.fetchAllHistoryMessages(channels, historySize, resultHandler);
+            return;
+        }
+        final Request request = new Request(channels, resultHandler);
+        final Set<String> uncached = new LinkedHashSet<>();
+        final Map<String, Load> loads = new LinkedHashMap<>();
+        for (String channel : channels) {
+            final Entry entry = entries.get(channel);
+            if (entry == null) {
+                COUNTER_REQUESTS.labels("miss").inc();
+                uncached.add(channel);
+                continue;
+            }
+            final List<ChatMessage> messages = entry.fetch(historySize, request, loads);
+            if (messages == null) {
+                COUNTER_REQUESTS.labels("miss").inc();
+                continue;
+            }
+            COUNTER_REQUESTS.labels("hit").inc();
+            synchronized (loaded) {
+                loaded.get(channel);
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            request.answer(channel, messages);
+        }
+
+        if (uncached.isEmpty() && loads.isEmpty()) {
+            return;
+        }
+        final Set<String> fetched = new LinkedHashSet<>(uncached);
+        fetched.addAll(loads.keySet());
+        store.fetchAllHistoryMessages(fetched, historySize, (result) -> {
+            for (Load load : loads.values()) {
+                completeLoad(load, result.get(load.entry.channel));
+            }
+            for (String channel : uncached) {
+                request.answer(channel, result.get(channel));
+            }
+        });
+    }
+
+    /**
+     * Pages of loaded channels are selected from the cache, the others are fetched from the store without loading
+     * them, as scrolling back through one channel doesn't mean the channel is fetched again.
+     */
+    @Override
+    public void fetchHistoryPage(String channel, int historySize, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        final Entry entry = enabled ? entries.get(channel) : null;
+        final List<ChatMessage> cached = entry != null ? entry.cached(historySize) : null;
+        if (cached == null) {
+            COUNTER_REQUESTS.labels("miss").inc();
+            store.fetchHistoryPage(channel, historySize, before, after, limit, resultHandler);
+            return;
+        }
+        COUNTER_REQUESTS.labels("hit").inc();
+        resultHandler.accept(HistoryService.selectPage(cached, before, after, limit));
+    }
+
+    /**
+     * Fills the entry and answers the waiting requests. The messages are null if the load failed.
+     */
+    private void completeLoad(Load load, List<ChatMessage> messages) {
+        final Entry entry = load.entry;
+        final List<ChatMessage> result = messages != null ? entry.complete(load, messages) : entry.fail(load);
+        if (result != null) {
+            entry.lastUsed = System.currentTimeMillis();
+            synchronized (loaded) {
+                if (entries.get(entry.channel) == entry) {
+                    loaded.put(entry.channel, entry);
+                }
+            }
+            evictIfNecessary();
+        }
+        final List<ChatMessage> answer = result != null ? result : messages;
+        for (Request waiter : load.waiters) {
+            waiter.answer(entry.channel, answer);
+        }
+    }
+
+    private void evictIfNecessary() {
+        List<Entry> evicted = null;
+        synchronized (loaded) {
+            int channels = loaded.size();
+            //Bytes are only released once the entries are reset, so they are counted down here
+            long bytes = totalBytes.get();
+            final long now = System.currentTimeMillis();
+            while ((channels > maxChannels || bytes > maxBytes) && !loaded.isEmpty()) {
+                final Entry entry = selectEviction(bytes > maxBytes, now);
+                loaded.remove(entry.channel);
+                channels--;
+                bytes -= entry.bytes;
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(entry);
+            }
+        }
+        if (evicted != null) {
+            for (Entry entry : evicted) {
+                entry.reset();
+                COUNTER_EVICTIONS.inc();
+                COUNTER_POLICY_EVICTIONS.labels(entry.policy.name).inc();
+            }
+        }
+    }
+
+    /**
+     * Returns the least recently used entry, or for the byte-limit the one among the least recently used whose
+     * size times idle-time is the largest. Must be called with the lock on loaded.
+     */
+    private Entry selectEviction(boolean sizeWeighted, long now) {
+        final Iterator<Entry> iterator = loaded.values().iterator();
+        Entry selected = iterator.next();
+        if (!sizeWeighted) {
+            return selected;
+        }
+        double selectedWeight = weight(selected, now);
+        for (int i = 1; i < EVICTION_CANDIDATES && iterator.hasNext(); i++) {
+            final Entry candidate = iterator.next();
+            final double weight = weight(candidate, now);
+            if (weight > selectedWeight) {
+                selected = candidate;
+                selectedWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    private static double weight(Entry entry, long now) {
+        return (double) entry.bytes * (Math.max(0, now - entry.lastUsed) + 1);
+    }
+
+    /**
+     * A fetch waiting for the history of its channels. It is answered once every channel was answered.
+     */
+    private static class Request {
+        private final Set<String> channels;
+        private final Consumer<Map<String, List<ChatMessage>>> resultHandler;
+        private final Map<String, List<ChatMessage>> answers = new HashMap<>();
+        private int remaining;
+
+        private Request(Set<String> channels, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+            this.channels = channels;
+            this.resultHandler = resultHandler;
+            this.remaining = channels.size();
+        }
+
+        /**
+         * The messages are null if the channel couldn't be fetched.
+         */
+        private void answer(String channel, List<ChatMessage> messages) {
+            synchronized (this) {
+                if (messages != null) {
+                    answers.put(channel, messages);
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+            final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+            for (String requested : channels) {
+                final List<ChatMessage> answered = answers.get(requested);
+                if (answered != null) {
+                    result.put(requested, answered);
+                }
+            }
+            resultHandler.accept(result);
+        }
+    }
+
+    /**
+     * A running load of a channel-history from the store.
+     */
+    private static class Load {
+        private final Entry entry;
+        private final int historySize;
+        private final long startedAt = System.currentTimeMillis();
+        private final List<Request> waiters = new ArrayList<>();
+
+        private Load(Entry entry, int historySize) {
+            this.entry = entry;
+            this.historySize = historySize;
+        }
+    }
+
+    private static class Received {
+        private final ChatMessage message;
+        private final long receivedAt;
+
+        private Received(ChatMessage message, long receivedAt) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /**
+     * The history of a subscribed channel, kept as a ring-buffer of the latest messages ordered by sequence-number.
+     * Messages received on the event-bus may also have been loaded from the store, or arrive out of order when several
+     * nodes publish to the channel, so they are inserted at their sequence-number and skipped if it is present already.
+     * Messages without sequence-number, whose numbering failed, are appended.
+     * While the history isn't loaded, after subscribing or eviction, the latest received messages are kept and merged
+     * into the next load, because the store may not have them yet.
+     */
+    private class Entry {
+        private final String channel;
+        private final HistoryPolicy policy;
+        private volatile long lastUsed = 0;
+        private ChatMessage[] ring = null;
+        private int head = 0;
+        private int count = 0;
+        private volatile long bytes = 0;
+        private Load load = null;
+        private final ArrayDeque<Received> received = new ArrayDeque<>();
+
+        private Entry(String channel, HistoryPolicy policy) {
+            this.channel = channel;
+            this.policy = policy;
+        }
+
+        /**
+         * Returns the cached messages or null if they are not loaded. In that case the request is added to the running
+         * load or a new load is added to the given map.
+         */
+        private synchronized List<ChatMessage> fetch(int historySize, Request request, Map<String, Load> loads) {
+            final List<ChatMessage> cached = cached(historySize);
+            if (cached != null) {
+                return cached;
+            }
+            if (load == null || load.historySize != historySize || System.currentTimeMillis() - load.startedAt > loadTimeout) {
+                //A load that didn't finish in time is replaced, its waiters are still answered if it finishes later
+                reset();
+                load = new Load(this, historySize);
+                loads.put(channel, load);
+            }
+            load.waiters.add(request);
+            return null;
+        }
+
+        /**
+         * Returns the cached messages or null if they are not loaded.
+         */
+        private synchronized List<ChatMessage> cached(int historySize) {
+            return ring != null && ring.length == historySize ? snapshot() : null;
+        }
+
+        /**
+         * Returns false if the messages were not cached because the history isn't loaded.
+         */
+        private boolean append(List<ChatMessage> messages) {
+            final long added;
+            synchronized (this) {
+                if (ring == null) {
+                    receive(messages);
+                    return false;
+                }
+                final long before = bytes;
+                for (ChatMessage message : messages) {
+                    insert(message.asHistory());
+                }
+                added = bytes - before;
+            }
+            addBytes(added);
+            return true;
+        }
+
+        /**
+         * Fills the ring-buffer if the load is still the current one and returns its content, otherwise null.
+         */
+        private List<ChatMessage> complete(Load completed, List<ChatMessage> messages) {
+            final long added;
+            final List<ChatMessage> result;
+            synchronized (this) {
+                if (load != completed) {
+                    return null;
+                }
+                load = null;
+                ring = new ChatMessage[completed.historySize];
+                for (ChatMessage message : messages) {
+                    insert(message);
+                }
+                for (Received message : received) {
+                    insert(message.message);
+                }
+                received.clear();
+                added = bytes;
+                result = snapshot();
+            }
+            addBytes(added);
+            GAUGE_CHANNELS.inc();
+            GAUGE_POLICY_CHANNELS.labels(policy.name).inc();
+            return result;
+        }
+
+        /**
+         * Forgets the failed load, so the next fetch starts a new one. Always returns null.
+         */
+        private synchronized List<ChatMessage> fail(Load failed) {
+            if (load == failed) {
+                load = null;
+            }
+            return null;
+        }
+
+        private void receive(List<ChatMessage> messages) {
+            final long now = System.currentTimeMillis();
+            for (ChatMessage message : messages) {
+                received.addLast(new Received(message.asHistory(), now));
+            }
+            while (!received.isEmpty() && (received.size() > policy.maxMessages || received.peekFirst().receivedAt < now - RECEIVED_WINDOW)) {
+                received.removeFirst();
+            }
+        }
+
+        /**
+         * Inserts the message behind the newest one with a lower sequence-number. Usually that is the last one, so
+         * nothing has to be moved.
+         */
+        private void insert(ChatMessage message) {
+            if (ring.length == 0) {
+                return;
+            }
+            final Long sequence = message.getSequence();
+            int position = count;
+            if (sequence != null) {
+                while (position > 0) {
+                    final Long previous = get(position - 1).getSequence();
+                    if (previous == null || previous < sequence) {
+                        break;
+                    }
+                    if (previous.equals(sequence)) {
+                        return;
+                    }
+                    position--;
+                }
+            }
+            if (count == ring.length) {
+                //Older than the whole history
+                if (position == 0) {
+                    return;
+                }
+                removeOldest();
+                position--;
+            }
+            for (int i = count; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, message);
+            count++;
+            bytes += HistoryPolicy.estimateSize(message);
+            while (policy.maxBytes > 0 && bytes > policy.maxBytes && count > 1) {
+                removeOldest();
+            }
+        }
+
+        private ChatMessage get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        private void set(int index, ChatMessage message) {
+            ring[(head + index) % ring.length] = message;
+        }
+
+        private void removeOldest() {
+            bytes -= HistoryPolicy.estimateSize(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+        }
+
+        private List<ChatMessage> snapshot() {
+            final List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(get(i));
+            }
+            return Collections.unmodifiableList(messages);
+        }
+
+        private void reset() {
+            final long released;
+            final boolean wasLoaded;
+            synchronized (this) {
+                wasLoaded = ring != null;
+                released = bytes;
+                ring = null;
+                head = 0;
+                count = 0;
+                bytes = 0;
+                load = null;
+            }
+            if (wasLoaded) {
+                addBytes(-released);
+                GAUGE_CHANNELS.dec();
+                GAUGE_POLICY_CHANNELS.labels(policy.name).dec();
+            }
+        }
+
+        private void addBytes(long added) {
+            totalBytes.addAndGet(added);
+            GAUGE_BYTES.inc(added);
+            GAUGE_POLICY_BYTES.labels(policy.name).inc(added);
+        }
+    }
+}
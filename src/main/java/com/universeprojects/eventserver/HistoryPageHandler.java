@@ -0,0 +1,81 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.List;
+
+/**
+ * Returns a page of the history of a channel, before or after the sequence-number given as cursor.
+ */
+public class HistoryPageHandler implements Handler<RoutingContext> {
+    public static final int DEFAULT_LIMIT = 50;
+
+    private final EventServerVerticle verticle;
+
+    public HistoryPageHandler(EventServerVerticle verticle) {
+        this.verticle = verticle;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if(context.request().method() != HttpMethod.GET) {
+            context.response().setStatusCode(405);
+            context.response().end();
+            return;
+        }
+        final MultiMap params = context.request().params();
+        final String channel = params.get("channel");
+        final Long before;
+        final Long after;
+        final int limit;
+        try {
+            before = parseLong(params.get("before"));
+            after = parseLong(params.get("after"));
+            limit = params.get("limit") != null ? Integer.parseInt(params.get("limit")) : DEFAULT_LIMIT;
+        } catch (NumberFormatException ex) {
+            context.response().setStatusCode(400);
+            context.response().end();
+            return;
+        }
+        if(channel == null || limit <= 0) {
+            context.response().setStatusCode(400);
+            context.response().end();
+            return;
+        }
+        verticle.fetchHistoryPage(channel, before, after, limit, (messages) -> {
+            if(messages == null) {
+                context.response().setStatusCode(500);
+                context.response().end();
+                return;
+            }
+            context.response()
+                .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                .end(toJson(channel, before, after, messages).toBuffer());
+        });
+    }
+
+    private Long parseLong(String value) {
+        return value != null ? Long.parseLong(value) : null;
+    }
+
+    /**
+     * The page as it is sent over HTTP and, wrapped in a "page"-field, over the socket.
+     */
+    public static JsonObject toJson(String channel, Long before, Long after, List<ChatMessage> messages) {
+        final JsonArray messagesJson = new JsonArray();
+        for(ChatMessage message : messages) {
+            messagesJson.add(ChatMessageCodec.INSTANCE.toJson(message, false));
+        }
+        return new JsonObject()
+            .put("channel", channel)
+            .put("before", before)
+            .put("after", after)
+            .put("messages", messagesJson);
+    }
+}
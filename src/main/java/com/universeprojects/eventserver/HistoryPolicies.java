@@ -0,0 +1,65 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The history-policies from the config, checked in their configured order, followed by the built-in ones:
+ * channels starting with "!" keep no history, channels starting with "?" are removed from Redis once they weren't
+ * updated for redis.history.expire and all others keep channel.history.size messages.
+ */
+public class HistoryPolicies {
+    public static final String CONFIG_HISTORY_POLICIES = "history_policies";
+    public static final String POLICY_UNSTORED = "unstored";
+    public static final String POLICY_VOLATILE = "volatile";
+    public static final String POLICY_DEFAULT = "default";
+
+    private static final long DEFAULT_VOLATILE_TTL = 24 * 60 * 60;
+
+    private final List<HistoryPolicy> policies;
+
+    public HistoryPolicies(int defaultMaxMessages) {
+        this(Config.getString(CONFIG_HISTORY_POLICIES, null),
+            defaultMaxMessages,
+            Config.getLong(RedisHistoryService.CONFIG_HISTORY_EXPIRE, DEFAULT_VOLATILE_TTL));
+    }
+
+    /**
+     * The configured policies are a json-object of policy-name to policy, e.g.
+     * {"direct": {"pattern": "user.*", "maxMessages": 20, "ttl": 86400}, "GLOBAL": {"maxBytes": 1048576}}.
+     * The pattern defaults to the name.
+     */
+    public HistoryPolicies(String configured, int defaultMaxMessages, long volatileTtlSeconds) {
+        final List<HistoryPolicy> policies = new ArrayList<>();
+        if (configured != null) {
+            final JsonObject json = new JsonObject(configured);
+            for (String name : json.fieldNames()) {
+                final JsonObject policy = json.getJsonObject(name);
+                policies.add(new HistoryPolicy(name,
+                    policy.getString("pattern", name),
+                    policy.getBoolean("history", true),
+                    policy.getInteger("maxMessages", defaultMaxMessages),
+                    policy.getLong("maxBytes", 0L),
+                    policy.getLong("ttl", 0L),
+                    false));
+            }
+        }
+        policies.add(new HistoryPolicy(POLICY_UNSTORED, "!*", false, 0, 0, 0, false));
+        policies.add(new HistoryPolicy(POLICY_VOLATILE, "?*", true, defaultMaxMessages, 0, volatileTtlSeconds, true));
+        policies.add(new HistoryPolicy(POLICY_DEFAULT, "*", true, defaultMaxMessages, 0, 0, false));
+        this.policies = Collections.unmodifiableList(policies);
+    }
+
+    public HistoryPolicy get(String channel) {
+        for (HistoryPolicy policy : policies) {
+            if (policy.matches(channel)) {
+                return policy;
+            }
+        }
+        //Not reached, the default policy matches every channel
+        return policies.get(policies.size() - 1);
+    }
+}
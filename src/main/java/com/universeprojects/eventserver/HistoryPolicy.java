@@ -0,0 +1,143 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Counter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the history of the channels matching a pattern is kept. The pattern may contain * as wildcard for any text.
+ */
+public class HistoryPolicy {
+    private static final long MESSAGE_OVERHEAD = 200;
+
+    private static final Counter COUNTER_STORED = Counter.build().name("history_policy_stored_messages_total").help("Messages stored in the history, per policy").labelNames("policy").register();
+    private static final Counter COUNTER_TRIMMED = Counter.build().name("history_policy_trimmed_messages_total").help("Fetched history-messages left out because of the TTL or byte-limit of their policy").labelNames("policy", "reason").register();
+
+    public final String name;
+    public final String pattern;
+    /** false if the channels keep no history at all */
+    public final boolean history;
+    public final int maxMessages;
+    /** Estimated size of the messages per channel that are sent to clients and kept in memory, 0 for no limit */
+    public final long maxBytes;
+    /** Seconds after which messages are left out of the history, 0 to keep them */
+    public final long ttlSeconds;
+    /**
+     * If true, the ttl only removes the whole history of a channel that wasn't updated for that long, which only the
+     * Redis stores support. The other stores keep such channels like any other.
+     */
+    public final boolean ttlIdle;
+    private final String[] patternParts;
+
+    public HistoryPolicy(String name, String pattern, boolean history, int maxMessages, long maxBytes, long ttlSeconds, boolean ttlIdle) {
+        if (history && maxMessages <= 0) {
+            throw new IllegalArgumentException("History-policy " + name + " needs a positive maxMessages");
+        }
+        this.name = name;
+        this.pattern = pattern;
+        this.history = history;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlSeconds = ttlSeconds;
+        this.ttlIdle = ttlIdle;
+        this.patternParts = pattern.split("\\*", -1);
+    }
+
+    public boolean matches(String channel) {
+        if (patternParts.length == 1) {
+            return pattern.equals(channel);
+        }
+        final String first = patternParts[0];
+        final String last = patternParts[patternParts.length - 1];
+        if (channel.length() < first.length() + last.length() || !channel.startsWith(first) || !channel.endsWith(last)) {
+            return false;
+        }
+        int position = first.length();
+        final int end = channel.length() - last.length();
+        for (int i = 1; i < patternParts.length - 1; i++) {
+            final int found = channel.indexOf(patternParts[i], position);
+            if (found < 0 || found + patternParts[i].length() > end) {
+                return false;
+            }
+            position = found + patternParts[i].length();
+        }
+        return true;
+    }
+
+    public void messagesStored(int count) {
+        COUNTER_STORED.labels(name).inc(count);
+    }
+
+    /**
+     * Leaves out the messages, oldest first, that expired or don't fit into maxBytes.
+     */
+    public List<ChatMessage> apply(List<ChatMessage> messages) {
+        int from = countExpired(messages);
+        if (maxBytes > 0) {
+            long bytes = 0;
+            int fitting = messages.size();
+            while (fitting > from && bytes + estimateSize(messages.get(fitting - 1)) <= maxBytes) {
+                fitting--;
+                bytes += estimateSize(messages.get(fitting));
+            }
+            if (fitting > from) {
+                COUNTER_TRIMMED.labels(name, "bytes").inc(fitting - from);
+                from = fitting;
+            }
+        }
+        return from == 0 ? messages : new ArrayList<>(messages.subList(from, messages.size()));
+    }
+
+    /**
+     * Leaves out the messages that expired. Used for pages, which aren't limited by maxBytes.
+     */
+    public List<ChatMessage> expire(List<ChatMessage> messages) {
+        final int from = countExpired(messages);
+        return from == 0 ? messages : new ArrayList<>(messages.subList(from, messages.size()));
+    }
+
+    private int countExpired(List<ChatMessage> messages) {
+        if (ttlSeconds <= 0 || ttlIdle) {
+            return 0;
+        }
+        final long minTimestamp = System.currentTimeMillis() - ttlSeconds * 1000;
+        int expired = 0;
+        while (expired < messages.size() && messages.get(expired).timestamp != null && messages.get(expired).timestamp < minTimestamp) {
+            expired++;
+        }
+        if (expired > 0) {
+            COUNTER_TRIMMED.labels(name, "ttl").inc(expired);
+        }
+        return expired;
+    }
+
+    /**
+     * Estimated heap-size of a message.
+     */
+    public static long estimateSize(ChatMessage message) {
+        long size = MESSAGE_OVERHEAD;
+        size += length(message.text) + length(message.senderUserId) + length(message.senderDisplayName) + length(message.channel);
+        if (message.additionalData != null) {
+            size += MESSAGE_OVERHEAD * message.additionalData.size();
+        }
+        return size;
+    }
+
+    private static long length(String value) {
+        return value != null ? 2L * value.length() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryPolicy{" +
+            "name='" + name + '\'' +
+            ", pattern='" + pattern + '\'' +
+            ", history=" + history +
+            ", maxMessages=" + maxMessages +
+            ", maxBytes=" + maxBytes +
+            ", ttlSeconds=" + ttlSeconds +
+            ", ttlIdle=" + ttlIdle +
+            '}';
+    }
+}
@@ -1,11 +1,67 @@
 package com.universeprojects.eventserver;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public interface HistoryService {
+    /**
+     * Orders messages by sequence-number, the ones without sequence-number first.
+     */
+    Comparator<ChatMessage> SEQUENCE_ORDER = Comparator.comparing(ChatMessage::getSequence, Comparator.nullsFirst(Comparator.naturalOrder()));
+
     void storeChatHistory(String channel, int historySize, List<ChatMessage> messages);
-    void fetchHistoryMessages(Set<String> channels, int historySize, BiConsumer<String, List<ChatMessage>> messageHandler);
 
+    /**
+     * Fetches the history of all channels at once. The result-handler is called exactly once, with the channels in the
+     * requested order and an empty list for a channel without history. Channels that couldn't be fetched because of
+     * an error are left out.
+     */
+    void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler);
+
+    /**
+     * Same as {@link #fetchAllHistoryMessages}, but calls the message-handler for every fetched channel.
+     */
+    default void fetchHistoryMessages(Set<String> channels, int historySize, BiConsumer<String, List<ChatMessage>> messageHandler) {
+        fetchAllHistoryMessages(channels, historySize, (result) -> result.forEach(messageHandler));
+    }
+
+    /**
+     * Fetches at most limit messages of a channel, oldest first, by their sequence-number. Only messages between the
+     * given cursors are included, both excluded. If the after-cursor is given, the page starts right after it,
+     * otherwise it ends right before the before-cursor, or with the newest message. The result-handler is called with
+     * null if the channel couldn't be fetched.
+     * By default the whole history is fetched and the page selected from it.
+     */
+    default void fetchHistoryPage(String channel, int historySize, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        fetchAllHistoryMessages(Collections.singleton(channel), historySize, (result) -> {
+            final List<ChatMessage> messages = result.get(channel);
+            resultHandler.accept(messages != null ? selectPage(messages, before, after, limit) : null);
+        });
+    }
+
+    /**
+     * Selects a page as described in {@link #fetchHistoryPage} from messages in any order. Messages without
+     * sequence-number are only included if no cursor is given.
+     */
+    static List<ChatMessage> selectPage(List<ChatMessage> messages, Long before, Long after, int limit) {
+        final List<ChatMessage> selected = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            final Long sequence = message.getSequence();
+            if (sequence == null ? before == null && after == null : (before == null || sequence < before) && (after == null || sequence > after)) {
+                selected.add(message);
+            }
+        }
+        //Stores append in the order the messages arrive, which may differ from their sequence-numbers
+        selected.sort(SEQUENCE_ORDER);
+        if (selected.size() <= limit) {
+            return selected;
+        }
+        return after != null ? selected.subList(0, limit) : selected.subList(selected.size() - limit, selected.size());
+    }
 }
@@ -0,0 +1,157 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects the messages stored for a channel and writes them to the history-store as one batch, once the window has
+ * passed since the first of them or once the batch is full. Fetches include the messages that are not written yet.
+ */
+public class HistoryWriteBehind implements HistoryService {
+    public static final String CONFIG_WINDOW = "history_write_behind_window";
+    public static final String CONFIG_MAX_MESSAGES = "history_write_behind_max_messages";
+
+    private static final long DEFAULT_WINDOW = 100;
+    private static final int DEFAULT_MAX_MESSAGES = 100;
+
+    private static final Histogram HISTOGRAM_BATCH_SIZE = Histogram.build().name("history_write_behind_batch_size").help("Messages written to the history-store in one batch").buckets(1, 2, 5, 10, 20, 50, 100, 200, 500).register();
+    private static final Histogram HISTOGRAM_LAG = Histogram.build().name("history_write_behind_lag_seconds").help("Time from storing the first message of a batch until it is written to the history-store").register();
+    private static final Gauge GAUGE_PENDING = Gauge.build().name("history_write_behind_pending_messages").help("Messages waiting to be written to the history-store").register();
+
+    private final Vertx vertx;
+    private final HistoryService store;
+    private final long window;
+    private final int maxMessages;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    public HistoryWriteBehind(Vertx vertx, HistoryService store) {
+        this(vertx, store, Config.getLong(CONFIG_WINDOW, DEFAULT_WINDOW), Config.getInt(CONFIG_MAX_MESSAGES, DEFAULT_MAX_MESSAGES));
+    }
+
+    public HistoryWriteBehind(Vertx vertx, HistoryService store, long window, int maxMessages) {
+        this.vertx = vertx;
+        this.store = store;
+        this.window = window;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
+        if (window <= 0) {
+            store.storeChatHistory(channel, historySize, messages);
+            return;
+        }
+        final boolean[] created = new boolean[1];
+        final boolean[] full = new boolean[1];
+        final Batch batch = batches.compute(channel, (key, existing) -> {
+            final Batch result = existing != null ? existing : new Batch(historySize);
+            result.messages.addAll(messages);
+            created[0] = existing == null;
+            full[0] = result.messages.size() >= maxMessages;
+            return result;
+        });
+        GAUGE_PENDING.inc(messages.size());
+        if (created[0]) {
+            vertx.setTimer(window, (ignored) -> flush(channel, batch));
+        }
+        if (full[0]) {
+            flush(channel, batch);
+        }
+    }
+
+    @Override
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        store.fetchAllHistoryMessages(channels, historySize, (result) -> {
+            result.replaceAll((channel, messages) -> appendPending(channel, historySize, messages));
+            resultHandler.accept(result);
+        });
+    }
+
+    /**
+     * The pending messages are the latest ones of this node, so they are the ones closest to the cursor that the
+     * store's page doesn't contain. Other nodes may have stored newer ones already, the page is sorted again.
+     */
+    @Override
+    public void fetchHistoryPage(String channel, int historySize, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        store.fetchHistoryPage(channel, historySize, before, after, limit, (messages) -> {
+            if (messages == null) {
+                resultHandler.accept(null);
+                return;
+            }
+            final List<ChatMessage> pending = getPending(channel);
+            if (pending.isEmpty()) {
+                resultHandler.accept(messages);
+                return;
+            }
+            final List<ChatMessage> result = new ArrayList<>(messages);
+            result.addAll(pending);
+            resultHandler.accept(HistoryService.selectPage(result, before, after, limit));
+        });
+    }
+
+    private List<ChatMessage> appendPending(String channel, int historySize, List<ChatMessage> messages) {
+        final List<ChatMessage> pending = getPending(channel);
+        if (pending.isEmpty()) {
+            return messages;
+        }
+        final List<ChatMessage> result = new ArrayList<>(messages);
+        result.addAll(pending);
+        result.sort(HistoryService.SEQUENCE_ORDER);
+        return result.subList(Math.max(0, result.size() - historySize), result.size());
+    }
+
+    private List<ChatMessage> getPending(String channel) {
+        final List<ChatMessage> pending = new ArrayList<>();
+        batches.computeIfPresent(channel, (key, batch) -> {
+            for (ChatMessage message : batch.messages) {
+                pending.add(message.asHistory());
+            }
+            return batch;
+        });
+        return pending;
+    }
+
+    /**
+     * Writes all pending batches. Called on shutdown.
+     */
+    public void flushAll() {
+        for (String channel : batches.keySet()) {
+            final Batch batch = batches.get(channel);
+            if (batch != null) {
+                flush(channel, batch);
+            }
+        }
+    }
+
+    private void flush(String channel, Batch batch) {
+        //The timer of a batch that was already written because it was full finds it removed
+        if (!batches.remove(channel, batch)) {
+            return;
+        }
+        final List<ChatMessage> messages = batch.messages;
+        GAUGE_PENDING.dec(messages.size());
+        HISTOGRAM_BATCH_SIZE.observe(messages.size());
+        HISTOGRAM_LAG.observe((System.nanoTime() - batch.createdAt) / (double) TimeUnit.SECONDS.toNanos(1));
+        store.storeChatHistory(channel, batch.historySize, messages);
+    }
+
+    private static class Batch {
+        private final long createdAt = System.nanoTime();
+        private final int historySize;
+        private final List<ChatMessage> messages = new ArrayList<>();
+
+        private Batch(int historySize) {
+            this.historySize = historySize;
+        }
+    }
+}
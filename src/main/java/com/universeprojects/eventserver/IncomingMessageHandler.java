@@ -1,9 +1,12 @@
 package com.universeprojects.eventserver;
 
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.RoutingContext;
 
 import java.util.ArrayList;
@@ -12,12 +15,18 @@ import java.util.List;
 import java.util.Map;
 
 public class IncomingMessageHandler implements Handler<RoutingContext> {
+    public static final String CONFIG_MAX_BODY_SIZE = "send_max_body_size";
+    public static final long DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final EventServerVerticle verticle;
+    private final long maxBodySize;
 
 
     public IncomingMessageHandler(EventServerVerticle verticle) {
         this.verticle = verticle;
+        this.maxBodySize = Config.getLong(CONFIG_MAX_BODY_SIZE, DEFAULT_MAX_BODY_SIZE);
     }
 
     @Override
@@ -28,64 +37,122 @@ public class IncomingMessageHandler implements Handler<RoutingContext> {
             return;
         }
 
-        context.request().bodyHandler((buffer) -> {
-            final JsonObject json = buffer.toJsonObject();
-            final JsonArray messages = json.getJsonArray("messages");
-            final Map<String, List<ChatMessage>> userMessages = new LinkedHashMap<>();
-            final Map<String, List<ChatMessage>> channelMessages = new LinkedHashMap<>();
-            parseAndCategorizeMessages(messages, userMessages, channelMessages);
-            processChannelMessages(channelMessages);
-            processUserMessages(userMessages);
+        if(exceedsMaxBodySize(context.request().getHeader(HttpHeaders.CONTENT_LENGTH), maxBodySize)) {
+            context.response().setStatusCode(413);
             context.response().end();
-        });
+            return;
+        }
+
+        final IngestionQueue.Entry entry = verticle.ingestionQueue.admit(context, "send");
+        if(entry != null) {
+            new Ingestion(context, entry).start();
+        }
     }
 
-    private void parseAndCategorizeMessages(JsonArray messages, Map<String, List<ChatMessage>> userMessages, Map<String, List<ChatMessage>> channelMessages) {
-        for(Object messageObj : messages) {
-            JsonObject messageJson = (JsonObject) messageObj;
-            ChatMessage chatMessage = ChatMessageCodec.INSTANCE.fromJson(messageJson);
-            EscapingService.INSTANCE.escapeHtml(chatMessage, false);
+    static boolean exceedsMaxBodySize(String contentLength, long maxBodySize) {
+        if(contentLength == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(contentLength) > maxBodySize;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Messages are parsed and categorized one at a time while the body is received. All of this happens on the
+     * context of the ingestion-queue.
+     * Direct messages are published right away. Channel-messages are collected per channel and published as one
+     * envelope per channel at the end of the request, once they are numbered. That is also when they are stored in
+     * the history.
+     */
+    private class Ingestion {
+        private final RoutingContext context;
+        private final IngestionQueue.Entry entry;
+        private final Map<String, List<ChatMessage>> channelMessages = new LinkedHashMap<>();
+        private final MessageStreamParser parser = new MessageStreamParser("messages", this::processMessage);
+        private long received = 0;
+        private boolean failed = false;
+
+        private Ingestion(RoutingContext context, IngestionQueue.Entry entry) {
+            this.context = context;
+            this.entry = entry;
+        }
+
+        private void start() {
+            entry.stream((buffer) -> process(() -> processChunk(buffer)), () -> process(this::processEnd));
+        }
+
+        private void processChunk(Buffer buffer) {
+            received += buffer.length();
+            if(received > maxBodySize) {
+                fail(413);
+                return;
+            }
+            parser.handle(buffer);
+        }
+
+        private void processEnd() {
+            parser.end();
+            publishChannelMessages();
+            entry.finish(200);
+        }
+
+        private void process(Runnable step) {
+            if(failed) {
+                return;
+            }
+            try {
+                step.run();
+            } catch (DecodeException ex) {
+                log.warn("Bad message-body on /send: " + ex.getMessage());
+                fail(400);
+            } catch (RuntimeException ex) {
+                log.error("Error processing /send", ex);
+                fail(500);
+            }
+        }
+
+        private void fail(int statusCode) {
+            failed = true;
+            //Messages parsed so far are still delivered, like the direct messages that have already been published
+            publishChannelMessages();
+            entry.finish(statusCode);
+        }
+
+        private void processMessage(Buffer buffer) {
+            ChatMessage chatMessage = EscapingService.INSTANCE.escapeHtml(ChatMessageCodec.INSTANCE.fromJson(buffer), false);
             if(chatMessage.timestamp == null) {
-                chatMessage.timestamp = System.currentTimeMillis();
+                chatMessage = chatMessage.withTimestamp(System.currentTimeMillis());
             }
             if(chatMessage.targetUserIds.isEmpty()) {
-                List<ChatMessage> msgs = channelMessages.computeIfAbsent(chatMessage.channel, (key) -> new ArrayList<>());
-                msgs.add(chatMessage);
+                channelMessages.computeIfAbsent(chatMessage.channel, (key) -> new ArrayList<>()).add(chatMessage);
             } else {
-                for(String userId : chatMessage.targetUserIds) {
-                    List<ChatMessage> msgs = userMessages.computeIfAbsent(userId, (key) -> new ArrayList<>());
-                    msgs.add(chatMessage);
-                }
+                ChatMessageCodec.INSTANCE.toClientBuffer(chatMessage);
+                publishUserMessage(chatMessage);
             }
         }
-    }
 
-    private void processChannelMessages(Map<String, List<ChatMessage>> messageMap) {
-        for(Map.Entry<String, List<ChatMessage>> entry : messageMap.entrySet()) {
-            final String channel = entry.getKey();
-            final List<ChatMessage> messages = entry.getValue();
-            String address = verticle.generateChannelAddress(channel);
-            for(ChatMessage chatMessage : messages) {
-                verticle.logConnectionEvent(() -> "Processing message for channel " + channel + ": " + chatMessage.text);
-                verticle.eventBus.publish(address, chatMessage);
+        private void publishUserMessage(ChatMessage chatMessage) {
+            for(String userId : chatMessage.targetUserIds) {
+                verticle.logConnectionEvent(() -> "Processing direct message for user " + userId + ": " + chatMessage.text);
+                verticle.messageRouter.publishPrivateMessage(userId, chatMessage);
             }
-            verticle.storeChatHistory(channel, messages);
         }
-    }
 
-    private void processUserMessages(Map<String, List<ChatMessage>> messageMap) {
-        for(Map.Entry<String, List<ChatMessage>> entry : messageMap.entrySet()) {
-            final String userId = entry.getKey();
-            List<ChatMessage> msgs = entry.getValue();
-            if(verticle.shouldLogConnections()) {
-                for(ChatMessage chatMessage : msgs) {
-                    verticle.logConnectionEvent(() -> "Processing direct message for user " + userId + ": " + chatMessage.text);
+        private void publishChannelMessages() {
+            for(Map.Entry<String, List<ChatMessage>> entry : channelMessages.entrySet()) {
+                final String channel = entry.getKey();
+                final List<ChatMessage> messages = entry.getValue();
+                if(verticle.shouldLogConnections()) {
+                    for(ChatMessage chatMessage : messages) {
+                        verticle.logConnectionEvent(() -> "Processing message for channel " + channel + ": " + chatMessage.text);
+                    }
                 }
+                verticle.publishChannelMessages(channel, messages);
             }
-            String address = verticle.generatePrivateMessageAddress(userId);
-            for(ChatMessage message : msgs) {
-                verticle.eventBus.publish(address, message);
-            }
+            channelMessages.clear();
         }
     }
 }
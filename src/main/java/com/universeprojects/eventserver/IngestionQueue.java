@@ -0,0 +1,171 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded stage for the requests of the backend (/send and /updateUsers).
+ * Admitted requests are processed on the context of a dedicated verticle, so bursts from the backend don't occupy the
+ * event-loops serving the sockets. Their bodies are paused until the queue gets to them, and while one of their
+ * chunks waits to be processed, so neither waiting nor slow requests buffer their bodies in memory. Once the capacity
+ * is reached further requests are rejected with 429 and a Retry-After header.
+ */
+public class IngestionQueue {
+    public static final String CONFIG_CAPACITY = "ingestion_queue_capacity";
+    public static final String CONFIG_RETRY_AFTER = "ingestion_retry_after";
+
+    private static final int DEFAULT_CAPACITY = 1000;
+    private static final long DEFAULT_RETRY_AFTER = 1;
+    private static final Gauge GAUGE_DEPTH = Gauge.build().name("ingestion_queue_depth").help("Requests admitted to the ingestion-queue that are not finished yet").labelNames("endpoint").register();
+    private static final Counter COUNTER_REJECTED = Counter.build().name("ingestion_rejected_requests_total").help("Requests rejected because the ingestion-queue was full").labelNames("endpoint").register();
+    private static final Histogram HISTOGRAM_QUEUED = Histogram.build().name("ingestion_queued_seconds").help("Time from admission until processing of a request started").labelNames("endpoint").register();
+
+    private volatile Context context;
+    private final int capacity;
+    private final long retryAfter;
+    private final AtomicInteger depth = new AtomicInteger();
+
+    public IngestionQueue(Vertx vertx) {
+        this(vertx, Config.getInt(CONFIG_CAPACITY, DEFAULT_CAPACITY), Config.getLong(CONFIG_RETRY_AFTER, DEFAULT_RETRY_AFTER));
+    }
+
+    public IngestionQueue(Vertx vertx, int capacity, long retryAfter) {
+        this.capacity = capacity;
+        this.retryAfter = retryAfter;
+        vertx.deployVerticle(new IngestionVerticle());
+    }
+
+    /**
+     * Admits the request or answers it with 429 if the queue is full, in which case null is returned.
+     */
+    public Entry admit(RoutingContext routingContext, String endpoint) {
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            COUNTER_REJECTED.labels(endpoint).inc();
+            routingContext.response()
+                .setStatusCode(429)
+                .putHeader("Retry-After", Long.toString(retryAfter))
+                .end();
+            return null;
+        }
+        GAUGE_DEPTH.labels(endpoint).inc();
+        final Entry entry = new Entry(routingContext, endpoint);
+        //Otherwise a request that is aborted by the client would never leave the queue
+        routingContext.response().closeHandler((ignored) -> entry.complete());
+        entry.start();
+        return entry;
+    }
+
+    private class IngestionVerticle extends AbstractVerticle {
+        @Override
+        public void start() {
+            IngestionQueue.this.context = context;
+        }
+    }
+
+    /**
+     * An admitted request. Its tasks run in order on the context of the queue, or on the context it was received on
+     * if it arrived before the queue's verticle was started.
+     * It stays in the queue until it is finished or the connection is closed.
+     */
+    public class Entry {
+        private final Context requestContext;
+        private final Context queueContext;
+        private final HttpServerRequest request;
+        private final HttpServerResponse response;
+        private final String endpoint;
+        private final long admittedAt = System.nanoTime();
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        //Only touched on the queue's context
+        private boolean started = false;
+
+        private Entry(RoutingContext routingContext, String endpoint) {
+            this.requestContext = Vertx.currentContext();
+            this.queueContext = context != null ? context : requestContext;
+            this.request = routingContext.request();
+            this.response = routingContext.response();
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Pauses the body until the queue gets to the request.
+         */
+        private void start() {
+            request.pause();
+            queueContext.runOnContext((ignored) -> resume());
+        }
+
+        private void resume() {
+            requestContext.runOnContext((ignored) -> {
+                if (!completed.get()) {
+                    request.resume();
+                }
+            });
+        }
+
+        /**
+         * Passes the body to the handlers on the queue's context. The request is paused while a chunk waits for its
+         * turn, so at most one chunk per request is queued.
+         */
+        public void stream(Handler<Buffer> chunkHandler, Runnable endHandler) {
+            request.handler((buffer) -> {
+                request.pause();
+                execute(() -> {
+                    chunkHandler.handle(buffer);
+                    resume();
+                });
+            });
+            request.endHandler((ignored) -> execute(endHandler));
+        }
+
+        public void execute(Runnable task) {
+            queueContext.runOnContext((ignored) -> {
+                if (!started) {
+                    started = true;
+                    HISTOGRAM_QUEUED.labels(endpoint).observe((System.nanoTime() - admittedAt) / (double) TimeUnit.SECONDS.toNanos(1));
+                }
+                task.run();
+            });
+        }
+
+        /**
+         * Removes the request from the queue and answers it on the context it was received on.
+         */
+        public void finish(int statusCode) {
+            complete();
+            requestContext.runOnContext((ignored) -> {
+                //A request answered before its body was read is drained, so its connection can be reused
+                if (!request.isEnded()) {
+                    request.handler((chunk) -> {
+                    });
+                    request.endHandler(null);
+                    request.resume();
+                }
+                if (!response.ended() && !response.closed()) {
+                    response.setStatusCode(statusCode);
+                    response.end();
+                }
+            });
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) {
+                depth.decrementAndGet();
+                GAUGE_DEPTH.labels(endpoint).dec();
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.universeprojects.eventserver;
 
+import com.hazelcast.config.InMemoryFormat;
 import com.hazelcast.config.MapConfig;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
@@ -13,6 +14,8 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     public static final String CONFIG_HAZELCAST_GROUP_NAME = "hazelcast_group_name";
@@ -20,6 +23,8 @@ public class Main {
     public static final String CONFIG_HAZELCAST_MANAGEMENT_URL = "hazelcast_management_url";
     public static final String CONFIG_CLUSTER_HOST = "cluster_host";
 
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     public static void main(String[] args) {
@@ -37,6 +42,7 @@ public class Main {
             if (res.succeeded()) {
                 Vertx vertx = res.result();
                 deployVerticle(vertx);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> closeVertx(vertx)));
             } else {
                 log.error("Error starting clustered Vertx", res.cause());
             }
@@ -59,8 +65,13 @@ public class Main {
             hazelcastConfig.getManagementCenterConfig().setEnabled(true);
             hazelcastConfig.getManagementCenterConfig().setUrl(managementUrl);
         }
-        final MapConfig messageMapConfig = hazelcastConfig.getMapConfig("messages");
-        messageMapConfig.setStatisticsEnabled(true);
+        final MapConfig historyMapConfig = hazelcastConfig.getMapConfig(HazelcastHistoryService.MAP_NAME);
+        historyMapConfig.setStatisticsEnabled(true);
+        //Lets the entry-processor append without deserializing the history first
+        historyMapConfig.setInMemoryFormat(InMemoryFormat.OBJECT);
+        //Idle channels are removed, they continue after the newest number in their history when used again
+        final MapConfig sequenceMapConfig = hazelcastConfig.getMapConfig(ChannelSequencer.MAP_NAME);
+        sequenceMapConfig.setMaxIdleSeconds(Config.getInt(ChannelSequencer.CONFIG_MAX_IDLE, ChannelSequencer.DEFAULT_MAX_IDLE));
         final MapConfig socketMapConfig = hazelcastConfig.getMapConfig("sockets.global");
         socketMapConfig.setStatisticsEnabled(true);
 
@@ -72,6 +83,21 @@ public class Main {
         vertx.deployVerticle(new EventServerVerticle());
     }
 
+    /**
+     * Undeploys the verticle, so pending history is written, and leaves the cluster.
+     */
+    private void closeVertx(Vertx vertx) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        vertx.close((res) -> latch.countDown());
+        try {
+            if (!latch.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("Vertx didn't close within " + SHUTDOWN_TIMEOUT + " seconds");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private VertxOptions createVertxOptions() {
         VertxOptions options = new VertxOptions();
         options.setClustered(true);
@@ -0,0 +1,399 @@
+package com.universeprojects.eventserver;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The history of a single channel as append-only segment-files that are mapped into memory.
+ * A segment is named after the offset of its first record within the channel. Every record consists of its length,
+ * the CRC32 of the message, the time it was stored and the message in the binary chat-format. The length is written
+ * last and followed by a zero-length, so a record that was not written completely ends the segment when it is
+ * recovered. The positions and sequence-numbers of the records are kept as offset-index per segment, which is rebuilt by the
+ * recovery.
+ * Creating a log doesn't touch the disk, the segments are mapped and recovered by {@link #open}.
+ * {@link #replace} writes a new log next to the directory and swaps it in by renaming, so a crash leaves either the
+ * old or the new records, and open completes or discards an interrupted swap.
+ * Not thread-safe, {@link MappedHistoryService} synchronizes on the log.
+ */
+class MappedHistoryLog {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int END_MARKER_SIZE = 4;
+    private static final long NO_SEQUENCE = Long.MIN_VALUE;
+    //Names of the directories next to the log's one that are used by replace, channel-directories don't contain a dot
+    static final String REPLACEMENT_SUFFIX = ".new";
+    static final String REPLACED_SUFFIX = ".old";
+
+    private static final Gauge GAUGE_SEGMENTS = Gauge.build().name("history_mapped_segments").help("Mapped segment-files of the open channel-histories").register();
+    private static final Counter COUNTER_DROPPED = Counter.build().name("history_mapped_dropped_records_total").help("Incomplete or corrupt records that were dropped during recovery").register();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextOffset = 0;
+    boolean opened = false;
+    boolean closed = false;
+
+    MappedHistoryLog(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    void open() throws IOException {
+        if (!opened) {
+            recoverReplace();
+            recover();
+            opened = true;
+        }
+    }
+
+    /**
+     * The replacement is only renamed to the log's directory once it was written completely, so without the replaced
+     * directory it is incomplete.
+     */
+    private void recoverReplace() throws IOException {
+        final File replacement = getSibling(REPLACEMENT_SUFFIX);
+        final File replaced = getSibling(REPLACED_SUFFIX);
+        if (replaced.exists()) {
+            if (!directory.exists()) {
+                log.warn("Completing the interrupted replacement of history " + directory);
+                Files.move(replacement.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            deleteDirectory(replaced);
+        }
+        if (replacement.exists()) {
+            log.warn("Discarding the incomplete replacement of history " + directory);
+            deleteDirectory(replacement);
+        }
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            final long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            final Segment segment = new Segment(file, baseOffset, (int) file.length());
+            segment.recover();
+            segments.add(segment);
+            GAUGE_SEGMENTS.inc();
+            nextOffset = segment.baseOffset + segment.count;
+        }
+        //Only the newest segment is appended to, so older ones without records are left over from a crash
+        while (segments.size() > 1 && segments.get(0).count == 0) {
+            deleteOldest();
+        }
+    }
+
+    /**
+     * Appends the messages and deletes the segments that only contain records older than the newest historySize.
+     */
+    void append(List<ChatMessage> messages, long storedAt, int historySize) throws IOException {
+        for (ChatMessage message : messages) {
+            final Buffer encoded = Buffer.buffer();
+            BinaryChatCodec.INSTANCE.encodeStoredMessage(encoded, message);
+            final byte[] bytes = encoded.getBytes();
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            final long sequence = message.getSequence() != null ? message.getSequence() : NO_SEQUENCE;
+            if (segment == null || !segment.append(bytes, storedAt, sequence)) {
+                segment = createSegment(HEADER_SIZE + bytes.length + END_MARKER_SIZE);
+                segment.append(bytes, storedAt, sequence);
+            }
+            nextOffset++;
+        }
+        while (segments.size() > 1 && nextOffset - segments.get(1).baseOffset >= historySize) {
+            deleteOldest();
+        }
+    }
+
+    private Segment createSegment(int minimumSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create history directory " + directory);
+        }
+        final File file = new File(directory, String.format("%020d", nextOffset) + SEGMENT_SUFFIX);
+        final Segment segment = new Segment(file, nextOffset, Math.max(segmentSize, minimumSize));
+        segments.add(segment);
+        GAUGE_SEGMENTS.inc();
+        return segment;
+    }
+
+    /**
+     * Reads the newest messages, oldest first, skipping the ones stored before minStoredAt.
+     */
+    List<ChatMessage> read(int limit, long minStoredAt) {
+        return readPage(null, null, limit, minStoredAt);
+    }
+
+    /**
+     * Reads all records stored from minStoredAt on, oldest first. Used to hand the history over to another node.
+     */
+    List<Record> readRecords(long minStoredAt) {
+        final List<Record> records = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (int index = 0; index < segment.count; index++) {
+                final long storedAt = segment.storedAt(index);
+                if (storedAt >= minStoredAt) {
+                    records.add(new Record(decode(segment, index), storedAt));
+                }
+            }
+        }
+        return records;
+    }
+
+    int count() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a page as described in {@link HistoryService#fetchHistoryPage}. Records are appended in the order they
+     * arrive, which isn't always the order of their sequence-numbers, so the matching records are sorted by the
+     * sequence-numbers of the offset-index and only the page is decoded. Records without sequence-number are older
+     * than the numbered ones.
+     */
+    List<ChatMessage> readPage(Long before, Long after, int limit, long minStoredAt) {
+        final boolean cursor = before != null || after != null;
+        int count = 0;
+        long[] sequences = new long[16];
+        long[] locations = new long[16];
+        for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+            final Segment segment = segments.get(segmentIndex);
+            for (int index = 0; index < segment.count; index++) {
+                final long sequence = segment.sequences[index];
+                if (segment.storedAt(index) < minStoredAt
+                    || cursor && (sequence == NO_SEQUENCE || before != null && sequence >= before || after != null && sequence <= after)) {
+                    continue;
+                }
+                if (count == sequences.length) {
+                    sequences = Arrays.copyOf(sequences, count * 2);
+                    locations = Arrays.copyOf(locations, count * 2);
+                }
+                //Insertion-sort, the records are mostly in order already
+                int position = count++;
+                while (position > 0 && sequences[position - 1] > sequence) {
+                    sequences[position] = sequences[position - 1];
+                    locations[position] = locations[position - 1];
+                    position--;
+                }
+                sequences[position] = sequence;
+                locations[position] = (long) segmentIndex << 32 | index;
+            }
+        }
+        final int from = after != null ? 0 : Math.max(0, count - limit);
+        final int to = Math.min(count, from + limit);
+        final List<ChatMessage> messages = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            messages.add(decode(segments.get((int) (locations[i] >>> 32)), (int) locations[i]).asHistory());
+        }
+        return messages;
+    }
+
+    private ChatMessage decode(Segment segment, int index) {
+        return BinaryChatCodec.INSTANCE.decodeMessage(0, segment.read(index));
+    }
+
+    /**
+     * Deletes the segments whose newest record was stored before minStoredAt. Returns true if no records are left.
+     */
+    boolean expire(long minStoredAt) {
+        while (!segments.isEmpty() && segments.get(0).lastStoredAt < minStoredAt) {
+            deleteOldest();
+        }
+        return segments.isEmpty();
+    }
+
+    /**
+     * Replaces all records with the given ones, which are appended in order as described for {@link #append}.
+     */
+    void replace(List<Record> records, int historySize) throws IOException {
+        final File replacement = getSibling(REPLACEMENT_SUFFIX);
+        final File replaced = getSibling(REPLACED_SUFFIX);
+        deleteDirectory(replacement);
+        final MappedHistoryLog replacementLog = new MappedHistoryLog(replacement, segmentSize);
+        for (Record record : records) {
+            replacementLog.append(Collections.singletonList(record.message), record.storedAt, historySize);
+        }
+        replacementLog.close();
+        if (!replacement.isDirectory() && !replacement.mkdirs()) {
+            throw new IOException("Failed to create history directory " + replacement);
+        }
+        GAUGE_SEGMENTS.dec(segments.size());
+        segments.clear();
+        nextOffset = 0;
+        if (directory.exists()) {
+            Files.move(directory.toPath(), replaced.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(replacement.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        deleteDirectory(replaced);
+        recover();
+    }
+
+    private File getSibling(String suffix) {
+        return new File(directory.getParentFile(), directory.getName() + suffix);
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    void delete() {
+        while (!segments.isEmpty()) {
+            deleteOldest();
+        }
+        //Only succeeds if nothing else was written to the directory
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * Drops the log without deleting its files. The mappings are released once the segments are garbage-collected.
+     */
+    void close() {
+        closed = true;
+        GAUGE_SEGMENTS.dec(segments.size());
+        segments.clear();
+    }
+
+    private void deleteOldest() {
+        final Segment segment = segments.remove(0);
+        GAUGE_SEGMENTS.dec();
+        if (!segment.file.delete()) {
+            log.warn("Failed to delete history segment " + segment.file);
+        }
+    }
+
+    static class Record {
+        final ChatMessage message;
+        final long storedAt;
+
+        Record(ChatMessage message, long storedAt) {
+            this.message = message;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private class Segment {
+        private final File file;
+        private final long baseOffset;
+        private final MappedByteBuffer buffer;
+        private int[] positions = new int[16];
+        private long[] sequences = new long[16];
+        private int count = 0;
+        private int writePosition = 0;
+        private long lastStoredAt = 0;
+
+        private Segment(File file, long baseOffset, int size) throws IOException {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                //The mapping stays valid after the channel is closed
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        private void recover() {
+            while (writePosition + HEADER_SIZE <= buffer.capacity()) {
+                final int length = buffer.getInt(writePosition);
+                if (length == 0) {
+                    return;
+                }
+                if (length < 0 || writePosition + HEADER_SIZE + length > buffer.capacity()
+                    || buffer.getInt(writePosition + 4) != checksum(writePosition + HEADER_SIZE, length)) {
+                    log.warn("Dropping incomplete record at position " + writePosition + " of history segment " + file);
+                    COUNTER_DROPPED.inc();
+                    buffer.putInt(writePosition, 0);
+                    return;
+                }
+                final Long sequence = decode(this, addPosition(writePosition, NO_SEQUENCE)).getSequence();
+                if (sequence != null) {
+                    sequences[count - 1] = sequence;
+                }
+                lastStoredAt = buffer.getLong(writePosition + 8);
+                writePosition += HEADER_SIZE + length;
+            }
+        }
+
+        private boolean append(byte[] bytes, long storedAt, long sequence) {
+            final int end = writePosition + HEADER_SIZE + bytes.length;
+            if (end + END_MARKER_SIZE > buffer.capacity()) {
+                return false;
+            }
+            final ByteBuffer target = buffer.duplicate();
+            target.position(writePosition + HEADER_SIZE);
+            target.put(bytes);
+            buffer.putLong(writePosition + 8, storedAt);
+            buffer.putInt(writePosition + 4, checksum(writePosition + HEADER_SIZE, bytes.length));
+            buffer.putInt(end, 0);
+            buffer.putInt(writePosition, bytes.length);
+            addPosition(writePosition, sequence);
+            lastStoredAt = storedAt;
+            writePosition = end;
+            return true;
+        }
+
+        private int checksum(int position, int length) {
+            final ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.limit(position + length);
+            final CRC32 crc = new CRC32();
+            crc.update(source);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Returns the index of the record.
+         */
+        private int addPosition(int position, long sequence) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                sequences = Arrays.copyOf(sequences, count * 2);
+            }
+            positions[count] = position;
+            sequences[count] = sequence;
+            return count++;
+        }
+
+        private long storedAt(int index) {
+            return buffer.getLong(positions[index] + 8);
+        }
+
+        private Buffer read(int index) {
+            final int position = positions[index];
+            final byte[] bytes = new byte[buffer.getInt(position)];
+            final ByteBuffer source = buffer.duplicate();
+            source.position(position + HEADER_SIZE);
+            source.get(bytes);
+            return Buffer.buffer(bytes);
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package com.universeprojects.eventserver;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.spi.cluster.ClusterManager;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps the history of every channel in memory-mapped segment-files on the local disk, see {@link MappedHistoryLog}.
+ * Every node has an id that is kept in the history-directory, so it stays the same over restarts. The channels are
+ * assigned to the ids of the nodes in the cluster by rendezvous-hashing, so a restarted node owns the same channels
+ * as before. A node stores and reads the channels it owns itself and sends the others to their owner over the
+ * event-bus. When the nodes change, every node hands the history of the channels it no longer owns over to their new
+ * owner, which merges it into its own by sequence-number. While a node is down, the next node only has the messages
+ * stored since, the older ones are merged in when the node is back.
+ * All disk-access runs on a worker-pool.
+ */
+public class MappedHistoryService implements HistoryService {
+    public static final String CONFIG_DIRECTORY = "history_mapped_directory";
+    public static final String CONFIG_SEGMENT_SIZE = "history_mapped_segment_size";
+    public static final String CONFIG_RETENTION = "history_mapped_retention";
+    public static final String CONFIG_MAX_OPEN_CHANNELS = "history_mapped_max_open_channels";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    private static final long DEFAULT_RETENTION = 7 * 24 * 60 * 60;
+    private static final int DEFAULT_MAX_OPEN_CHANNELS = 10000;
+    private static final long EXPIRE_INTERVAL = 60 * 1000;
+    //Membership-events and the node-ids of new members arrive separately, so the handover waits for both
+    private static final long HANDOVER_DELAY = 5 * 1000;
+    private static final int WORKER_POOL_SIZE = 4;
+
+    private static final String NODE_ID_FILE = "node.id";
+    private static final String MEMBER_ATTRIBUTE = "history.mapped.node";
+    private static final String HEADER_CHANNEL = "channel";
+    private static final String HEADER_HISTORY_SIZE = "historySize";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final EventServerVerticle verticle;
+    private final Vertx vertx;
+    private final WorkerExecutor worker;
+    private final File directory;
+    private final int segmentSize;
+    private final long retentionMillis;
+    private final HazelcastInstance hazelcast;
+    private final String nodeId;
+    //Every open log holds mappings, so only the recently used ones are kept open
+    private final LinkedHashMap<String, MappedHistoryLog> logs;
+    //Logs removed from the map, which are closed after the map is unlocked
+    private final List<MappedHistoryLog> evicted = new ArrayList<>();
+    private final AtomicBoolean handoverScheduled = new AtomicBoolean();
+
+    public MappedHistoryService(EventServerVerticle verticle) {
+        this(verticle, new File(Config.getString(CONFIG_DIRECTORY, "history")), Config.getInt(CONFIG_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE),
+            Config.getLong(CONFIG_RETENTION, DEFAULT_RETENTION), Config.getInt(CONFIG_MAX_OPEN_CHANNELS, DEFAULT_MAX_OPEN_CHANNELS));
+    }
+
+    public MappedHistoryService(EventServerVerticle verticle, File directory, int segmentSize, long retentionSeconds, int maxOpenChannels) {
+        this.verticle = verticle;
+        this.vertx = verticle.getVertx();
+        this.worker = vertx.createSharedWorkerExecutor("history-mapped", WORKER_POOL_SIZE);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = TimeUnit.SECONDS.toMillis(retentionSeconds);
+        this.logs = new LinkedHashMap<String, MappedHistoryLog>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MappedHistoryLog> eldest) {
+                if (size() <= maxOpenChannels) {
+                    return false;
+                }
+                evicted.add(eldest.getValue());
+                return true;
+            }
+        };
+        this.nodeId = loadNodeId();
+        final ClusterManager clusterManager = ((VertxInternal) vertx).getClusterManager();
+        this.hazelcast = clusterManager instanceof HazelcastClusterManager ? ((HazelcastClusterManager) clusterManager).getHazelcastInstance() : null;
+        vertx.eventBus().<ChatEnvelope>consumer(generateStoreAddress(nodeId), this::processStoreRequest);
+        vertx.eventBus().<JsonObject>consumer(generateFetchAddress(nodeId), this::processFetchRequest);
+        vertx.eventBus().<JsonObject>consumer(generatePageAddress(nodeId), this::processPageRequest);
+        vertx.eventBus().<ChatEnvelope>consumer(generateHandoverAddress(nodeId), this::processHandoverRequest);
+        if (hazelcast != null) {
+            hazelcast.getCluster().addMembershipListener(new MembershipListener() {
+                @Override
+                public void memberAdded(MembershipEvent membershipEvent) {
+                    scheduleHandover();
+                }
+
+                @Override
+                public void memberRemoved(MembershipEvent membershipEvent) {
+                    scheduleHandover();
+                }
+
+                @Override
+                public void memberAttributeChanged(MemberAttributeEvent memberAttributeEvent) {
+                    scheduleHandover();
+                }
+            });
+            hazelcast.getCluster().getLocalMember().setStringAttribute(MEMBER_ATTRIBUTE, nodeId);
+            //Channels might have moved while this node was down
+            scheduleHandover();
+        }
+        vertx.setPeriodic(EXPIRE_INTERVAL, (ignored) -> worker.executeBlocking((future) -> {
+            expire();
+            //Picks up messages that were stored by nodes which didn't know the new owner yet
+            handOver();
+            future.complete();
+        }, false, null));
+    }
+
+    private String loadNodeId() {
+        final File file = new File(directory, NODE_ID_FILE);
+        try {
+            if (file.exists()) {
+                return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create history directory " + directory);
+            }
+            final String id = UUID.randomUUID().toString();
+            Files.write(file.toPath(), id.getBytes(StandardCharsets.UTF_8));
+            return id;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to load the node-id from " + file, ex);
+        }
+    }
+
+    private String generateStoreAddress(String node) {
+        return "history.mapped.store." + node;
+    }
+
+    private String generateFetchAddress(String node) {
+        return "history.mapped.fetch." + node;
+    }
+
+    private String generatePageAddress(String node) {
+        return "history.mapped.page." + node;
+    }
+
+    private String generateHandoverAddress(String node) {
+        return "history.mapped.handover." + node;
+    }
+
+    /**
+     * Returns the node with the highest score for the channel. Adding or removing a node only moves the channels
+     * that node wins or won.
+     */
+    private String getOwner(String channel) {
+        if (hazelcast == null) {
+            return nodeId;
+        }
+        String owner = nodeId;
+        long ownerScore = score(channel, nodeId);
+        for (Member member : hazelcast.getCluster().getMembers()) {
+            final String node = member.getStringAttribute(MEMBER_ATTRIBUTE);
+            if (node == null) {
+                continue;
+            }
+            final long score = score(channel, node);
+            if (score > ownerScore || score == ownerScore && node.compareTo(owner) > 0) {
+                owner = node;
+                ownerScore = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long score(String channel, String node) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < channel.length(); i++) {
+            hash = 31 * hash + channel.charAt(i);
+        }
+        hash = 31 * hash;
+        for (int i = 0; i < node.length(); i++) {
+            hash = 31 * hash + node.charAt(i);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
+        if (messages.isEmpty()) return;
+        final String owner = getOwner(channel);
+        if (owner.equals(nodeId)) {
+            storeLocal(channel, historySize, messages);
+            return;
+        }
+        final DeliveryOptions options = new DeliveryOptions()
+            .addHeader(HEADER_CHANNEL, channel)
+            .addHeader(HEADER_HISTORY_SIZE, Integer.toString(historySize));
+        vertx.eventBus().send(generateStoreAddress(owner), ChatEnvelope.forMessages(messages), options);
+    }
+
+    private void processStoreRequest(Message<ChatEnvelope> message) {
+        final String channel = message.headers().get(HEADER_CHANNEL);
+        final int historySize = Integer.parseInt(message.headers().get(HEADER_HISTORY_SIZE));
+        storeLocal(channel, historySize, message.body().getMessages());
+    }
+
+    /**
+     * Stores from the same context are appended in the order they were made.
+     */
+    private void storeLocal(String channel, int historySize, List<ChatMessage> messages) {
+        worker.<Void>executeBlocking((future) -> {
+            withLog(channel, (channelLog) -> {
+                try {
+                    channelLog.append(messages, System.currentTimeMillis(), historySize);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return null;
+            });
+            future.complete();
+        }, true, (result) -> {
+            if (result.succeeded()) {
+                verticle.logStorageEvent(() -> "Successfully stored " + messages.size() + " messages for channel " + channel);
+            } else {
+                log.error("Error storing messages for channel " + channel, result.cause());
+            }
+        });
+    }
+
+    @Override
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Context context = vertx.getOrCreateContext();
+        final Map<String, List<String>> channelsByOwner = new LinkedHashMap<>();
+        for (String channel : channels) {
+            channelsByOwner.computeIfAbsent(getOwner(channel), (key) -> new ArrayList<>()).add(channel);
+        }
+        final Map<String, List<ChatMessage>> fetched = new ConcurrentHashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(channelsByOwner.size());
+        final Runnable onFetched = () -> {
+            final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+            for (String channel : channels) {
+                final List<ChatMessage> messages = fetched.get(channel);
+                if (messages != null) {
+                    result.put(channel, messages);
+                }
+            }
+            context.runOnContext((ignored) -> resultHandler.accept(result));
+        };
+        if (channelsByOwner.isEmpty()) {
+            onFetched.run();
+            return;
+        }
+        final List<String> localChannels = channelsByOwner.remove(nodeId);
+        if (localChannels != null) {
+            fetchLocal(localChannels, historySize, (messagesByChannel) -> {
+                fetched.putAll(messagesByChannel);
+                if (remaining.decrementAndGet() == 0) {
+                    onFetched.run();
+                }
+            });
+        }
+        for (Map.Entry<String, List<String>> entry : channelsByOwner.entrySet()) {
+            final JsonObject request = new JsonObject()
+                .put("channels", new JsonArray(entry.getValue()))
+                .put(HEADER_HISTORY_SIZE, historySize);
+            vertx.eventBus().<ChatEnvelope>send(generateFetchAddress(entry.getKey()), request, (reply) -> {
+                if (reply.succeeded()) {
+                    for (String channel : entry.getValue()) {
+                        fetched.put(channel, new ArrayList<>());
+                    }
+                    for (ChatMessage message : reply.result().body().getMessages()) {
+                        final List<ChatMessage> messages = fetched.get(message.channel);
+                        if (messages != null) {
+                            messages.add(message);
+                        }
+                    }
+                } else {
+                    log.warn("Error fetching messages from node " + entry.getKey(), reply.cause());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    onFetched.run();
+                }
+            });
+        }
+    }
+
+    private void processFetchRequest(Message<JsonObject> message) {
+        final List<String> channels = new ArrayList<>();
+        for (Object channel : message.body().getJsonArray("channels")) {
+            channels.add((String) channel);
+        }
+        fetchLocal(channels, message.body().getInteger(HEADER_HISTORY_SIZE), (messagesByChannel) -> {
+            final List<ChatMessage> messages = new ArrayList<>();
+            messagesByChannel.values().forEach(messages::addAll);
+            message.reply(ChatEnvelope.forMessages(messages));
+        });
+    }
+
+    private void fetchLocal(List<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        worker.<Map<String, List<ChatMessage>>>executeBlocking((future) -> {
+            final long minStoredAt = System.currentTimeMillis() - retentionMillis;
+            final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+            for (String channel : channels) {
+                try {
+                    result.put(channel, withLog(channel, (channelLog) -> channelLog.read(historySize, minStoredAt)));
+                } catch (RuntimeException ex) {
+                    log.error("Error fetching messages for channel " + channel, ex);
+                }
+            }
+            future.complete(result);
+        }, false, (result) -> resultHandler.accept(result.result()));
+    }
+
+    /**
+     * Pages are read from the segment-files of the owner without reading the whole history.
+     */
+    @Override
+    public void fetchHistoryPage(String channel, int historySize, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        final String owner = getOwner(channel);
+        if (owner.equals(nodeId)) {
+            fetchLocalPage(channel, before, after, limit, resultHandler);
+            return;
+        }
+        final JsonObject request = new JsonObject()
+            .put("channel", channel)
+            .put("before", before)
+            .put("after", after)
+            .put("limit", limit);
+        vertx.eventBus().<ChatEnvelope>send(generatePageAddress(owner), request, (reply) -> {
+            if (reply.succeeded()) {
+                resultHandler.accept(reply.result().body().getMessages());
+            } else {
+                log.warn("Error fetching a page of channel " + channel + " from node " + owner, reply.cause());
+                resultHandler.accept(null);
+            }
+        });
+    }
+
+    private void processPageRequest(Message<JsonObject> message) {
+        final JsonObject request = message.body();
+        fetchLocalPage(request.getString("channel"), request.getLong("before"), request.getLong("after"), request.getInteger("limit"), (messages) -> {
+            if (messages != null) {
+                message.reply(ChatEnvelope.forMessages(messages));
+            } else {
+                message.fail(500, "Error fetching messages");
+            }
+        });
+    }
+
+    private void fetchLocalPage(String channel, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        worker.<List<ChatMessage>>executeBlocking((future) -> {
+            final long minStoredAt = System.currentTimeMillis() - retentionMillis;
+            future.complete(withLog(channel, (channelLog) -> channelLog.readPage(before, after, limit, minStoredAt)));
+        }, false, (result) -> {
+            if (result.failed()) {
+                log.error("Error fetching messages for channel " + channel, result.cause());
+            }
+            resultHandler.accept(result.result());
+        });
+    }
+
+    private void scheduleHandover() {
+        if (handoverScheduled.compareAndSet(false, true)) {
+            vertx.setTimer(HANDOVER_DELAY, (ignored) -> {
+                handoverScheduled.set(false);
+                worker.executeBlocking((future) -> {
+                    handOver();
+                    future.complete();
+                }, true, null);
+            });
+        }
+    }
+
+    /**
+     * Sends the history of every channel on the disk that is owned by another node to that node. The local history
+     * is deleted once the owner has stored it, unless messages were added in the meantime, which are then handed
+     * over by the next run.
+     */
+    private synchronized void handOver() {
+        recoverReplacements();
+        final File[] directories = listChannelDirectories();
+        if (directories == null) {
+            return;
+        }
+        final long minStoredAt = System.currentTimeMillis() - retentionMillis;
+        for (File channelDirectory : directories) {
+            final String channel = parseDirectoryName(channelDirectory.getName());
+            final String owner = getOwner(channel);
+            if (owner.equals(nodeId)) {
+                continue;
+            }
+            final List<ChatMessage> messages = new ArrayList<>();
+            final int count;
+            try {
+                count = withLog(channel, (channelLog) -> {
+                    for (MappedHistoryLog.Record record : channelLog.readRecords(minStoredAt)) {
+                        messages.add(record.message);
+                    }
+                    return channelLog.count();
+                });
+            } catch (RuntimeException ex) {
+                log.error("Error reading the history of channel " + channel + " for the handover", ex);
+                continue;
+            }
+            final DeliveryOptions options = new DeliveryOptions()
+                .addHeader(HEADER_CHANNEL, channel)
+                .addHeader(HEADER_HISTORY_SIZE, Integer.toString(verticle.historyPolicies.get(channel).maxMessages));
+            vertx.eventBus().send(generateHandoverAddress(owner), ChatEnvelope.forMessages(messages), options, (reply) -> {
+                if (reply.failed()) {
+                    log.warn("Error handing the history of channel " + channel + " over to node " + owner, reply.cause());
+                    return;
+                }
+                worker.executeBlocking((future) -> {
+                    deleteHandedOver(channel, count);
+                    future.complete();
+                }, true, null);
+            });
+        }
+    }
+
+    private void deleteHandedOver(String channel, int count) {
+        final boolean deleted = withLog(channel, (channelLog) -> {
+            if (channelLog.count() != count) {
+                return false;
+            }
+            channelLog.delete();
+            channelLog.close();
+            return true;
+        });
+        if (deleted) {
+            synchronized (logs) {
+                final MappedHistoryLog channelLog = logs.get(channel);
+                if (channelLog != null && channelLog.closed) {
+                    logs.remove(channel);
+                }
+            }
+        } else {
+            scheduleHandover();
+        }
+    }
+
+    private void processHandoverRequest(Message<ChatEnvelope> message) {
+        final String channel = message.headers().get(HEADER_CHANNEL);
+        final int historySize = Integer.parseInt(message.headers().get(HEADER_HISTORY_SIZE));
+        final List<ChatMessage> messages = message.body().getMessages();
+        worker.<Void>executeBlocking((future) -> {
+            withLog(channel, (channelLog) -> {
+                merge(channelLog, messages, historySize);
+                return null;
+            });
+            future.complete();
+        }, true, (result) -> {
+            if (result.succeeded()) {
+                message.reply(null);
+            } else {
+                log.error("Error merging the history of channel " + channel, result.cause());
+                message.fail(500, "Error merging the history");
+            }
+        });
+    }
+
+    /**
+     * Replaces the log with one that has the handed over messages added, see {@link MappedHistoryLog#replace}.
+     * Messages are ordered by their sequence-number, the ones without come first, and handed over messages that are
+     * already stored are skipped. The handed over messages keep their timestamp as the time they were stored.
+     */
+    private void merge(MappedHistoryLog channelLog, List<ChatMessage> messages, int historySize) {
+        final List<MappedHistoryLog.Record> unsequenced = new ArrayList<>();
+        final TreeMap<Long, MappedHistoryLog.Record> sequenced = new TreeMap<>();
+        final List<MappedHistoryLog.Record> existing = channelLog.readRecords(0);
+        for (MappedHistoryLog.Record record : existing) {
+            add(record, unsequenced, sequenced);
+        }
+        final long now = System.currentTimeMillis();
+        for (ChatMessage message : messages) {
+            add(new MappedHistoryLog.Record(message, message.timestamp != null ? message.timestamp : now), unsequenced, sequenced);
+        }
+        if (unsequenced.size() + sequenced.size() == existing.size()) {
+            return;
+        }
+        final List<MappedHistoryLog.Record> merged = new ArrayList<>(unsequenced);
+        merged.addAll(sequenced.values());
+        try {
+            channelLog.replace(merged, historySize);
+        } catch (IOException ex) {
+            //The next use opens the log again, which completes or discards the replacement
+            channelLog.close();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void add(MappedHistoryLog.Record record, List<MappedHistoryLog.Record> unsequenced, Map<Long, MappedHistoryLog.Record> sequenced) {
+        final Long sequence = record.message.getSequence();
+        if (sequence == null) {
+            unsequenced.add(record);
+        } else {
+            sequenced.putIfAbsent(sequence, record);
+        }
+    }
+
+    /**
+     * Runs the action on the open log of the channel. Opening a log recovers it from its segment-files, which is done
+     * while only the log is locked, so the other channels can be used meanwhile. Must not be called on an event-loop.
+     */
+    private <T> T withLog(String channel, Function<MappedHistoryLog, T> action) {
+        while (true) {
+            final MappedHistoryLog channelLog = getLog(channel);
+            synchronized (channelLog) {
+                //The log might have been closed since it was taken from the map
+                if (!channelLog.closed) {
+                    try {
+                        channelLog.open();
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    return action.apply(channelLog);
+                }
+            }
+            synchronized (logs) {
+                logs.remove(channel, channelLog);
+            }
+        }
+    }
+
+    private MappedHistoryLog getLog(String channel) {
+        final MappedHistoryLog channelLog;
+        final List<MappedHistoryLog> toClose;
+        synchronized (logs) {
+            channelLog = logs.computeIfAbsent(channel, (key) -> new MappedHistoryLog(new File(directory, generateDirectoryName(channel)), segmentSize));
+            toClose = new ArrayList<>(evicted);
+            evicted.clear();
+        }
+        for (MappedHistoryLog evictedLog : toClose) {
+            synchronized (evictedLog) {
+                evictedLog.close();
+            }
+        }
+        return channelLog;
+    }
+
+    private File[] listChannelDirectories() {
+        return directory.listFiles((file) -> file.isDirectory() && file.getName().indexOf('.') < 0);
+    }
+
+    /**
+     * Opens the logs of the channels whose replacement was interrupted by a crash, which completes or discards it.
+     */
+    private void recoverReplacements() {
+        final File[] replacements = directory.listFiles((file) -> file.isDirectory() && file.getName().indexOf('.') >= 0);
+        if (replacements == null) {
+            return;
+        }
+        for (File replacement : replacements) {
+            final String name = replacement.getName();
+            final String channel = parseDirectoryName(name.substring(0, name.indexOf('.')));
+            try {
+                withLog(channel, (channelLog) -> null);
+            } catch (RuntimeException ex) {
+                log.error("Error recovering the history of channel " + channel, ex);
+            }
+        }
+    }
+
+    private String generateDirectoryName(String channel) {
+        final StringBuilder name = new StringBuilder();
+        for (byte b : channel.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    private String parseDirectoryName(String name) {
+        final byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(name.charAt(i * 2), 16) << 4) | Character.digit(name.charAt(i * 2 + 1), 16));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the history that is older than the retention. Open logs check the time their records were stored,
+     * for the others the modification-time of the directory's files is used. Only the log of a channel is locked
+     * while its files are deleted.
+     */
+    private void expire() {
+        final long minStoredAt = System.currentTimeMillis() - retentionMillis;
+        final List<Map.Entry<String, MappedHistoryLog>> openLogs;
+        synchronized (logs) {
+            openLogs = new ArrayList<>(logs.entrySet());
+        }
+        for (Map.Entry<String, MappedHistoryLog> entry : openLogs) {
+            final MappedHistoryLog channelLog = entry.getValue();
+            synchronized (channelLog) {
+                if (channelLog.closed || !channelLog.opened || !channelLog.expire(minStoredAt)) {
+                    continue;
+                }
+                channelLog.delete();
+                channelLog.close();
+            }
+            synchronized (logs) {
+                logs.remove(entry.getKey(), channelLog);
+            }
+        }
+        final File[] directories = listChannelDirectories();
+        if (directories == null) {
+            return;
+        }
+        for (File channelDirectory : directories) {
+            if (getLastModified(channelDirectory) >= minStoredAt) {
+                continue;
+            }
+            final String channel = parseDirectoryName(channelDirectory.getName());
+            final MappedHistoryLog channelLog = getLog(channel);
+            synchronized (channelLog) {
+                //Opened logs were expired above, or have been used since
+                if (channelLog.closed || channelLog.opened) {
+                    continue;
+                }
+                final File[] files = channelDirectory.listFiles();
+                if (files != null && getLastModified(channelDirectory) < minStoredAt) {
+                    for (File file : files) {
+                        if (!file.delete()) {
+                            log.warn("Failed to delete history segment " + file);
+                        }
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    channelDirectory.delete();
+                }
+                channelLog.close();
+            }
+            synchronized (logs) {
+                logs.remove(channel, channelLog);
+            }
+        }
+    }
+
+    private long getLastModified(File channelDirectory) {
+        final File[] files = channelDirectory.listFiles();
+        long lastModified = 0;
+        if (files != null) {
+            for (File file : files) {
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+        }
+        return lastModified;
+    }
+
+}
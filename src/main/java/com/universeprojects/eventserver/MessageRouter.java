@@ -0,0 +1,17 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+
+public interface MessageRouter {
+    interface Registration {
+        void unregister();
+    }
+
+    void publishChannelMessages(String channel, ChatEnvelope envelope);
+    void publishPrivateMessage(String userId, ChatMessage message);
+    void publishUserUpdate(String userId, JsonArray channels);
+
+    Registration registerChannel(String channel, Handler<ChatEnvelope> handler);
+    Registration registerUser(String userId, Handler<ChatMessage> privateMessageHandler, Handler<JsonArray> updateHandler);
+}
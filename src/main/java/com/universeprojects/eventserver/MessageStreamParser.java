@@ -0,0 +1,143 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+
+/**
+ * Splits an array-field of a json-object into its elements while the json is received in chunks.
+ * Only the structure is tracked here (nesting, strings and the name of the current field). Every element has to be
+ * an object and is handed to the element-handler as soon as it is complete, so only one element is held in memory
+ * at a time. The elements themselves are not validated.
+ */
+public class MessageStreamParser {
+    private final String arrayField;
+    private final Handler<Buffer> elementHandler;
+
+    private int depth = 0;
+    private boolean started = false;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private boolean inArray = false;
+    private StringBuilder fieldName = null;
+    private String lastString = null;
+    private String currentField = null;
+    private Buffer element = null;
+
+    public MessageStreamParser(String arrayField, Handler<Buffer> elementHandler) {
+        this.arrayField = arrayField;
+        this.elementHandler = elementHandler;
+    }
+
+    public void handle(Buffer chunk) {
+        final int length = chunk.length();
+        int elementStart = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = chunk.getByte(i);
+            if (inString) {
+                processStringByte(b);
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    if (inArray && depth == 2) {
+                        throw new DecodeException("Expected a json-object as element of " + arrayField);
+                    }
+                    inString = true;
+                    if (depth == 1) {
+                        fieldName = new StringBuilder();
+                    }
+                    break;
+                case '{':
+                    if (!started) {
+                        started = true;
+                    } else if (depth == 0) {
+                        throw new DecodeException("Unexpected data after the end of the json-object");
+                    } else if (inArray && depth == 2) {
+                        element = Buffer.buffer();
+                        elementStart = i;
+                    }
+                    depth++;
+                    break;
+                case '[':
+                    if (depth == 0) {
+                        throw new DecodeException("Expected a json-object");
+                    }
+                    if (depth == 1 && arrayField.equals(currentField)) {
+                        inArray = true;
+                    } else if (inArray && depth == 2) {
+                        throw new DecodeException("Expected a json-object as element of " + arrayField);
+                    }
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (depth < 0) {
+                        throw new DecodeException("Unexpected " + (char) b);
+                    }
+                    if (inArray && depth == 2 && element != null) {
+                        element.appendBuffer(chunk, elementStart, i + 1 - elementStart);
+                        final Buffer completed = element;
+                        element = null;
+                        elementHandler.handle(completed);
+                    } else if (inArray && depth == 1) {
+                        inArray = false;
+                    }
+                    break;
+                case ':':
+                    if (depth == 1) {
+                        currentField = lastString;
+                    }
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        currentField = null;
+                    }
+                    break;
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    break;
+                default:
+                    if (!started || depth == 0) {
+                        throw new DecodeException("Expected a json-object");
+                    }
+                    if (inArray && depth == 2) {
+                        throw new DecodeException("Expected a json-object as element of " + arrayField);
+                    }
+            }
+        }
+        if (element != null) {
+            element.appendBuffer(chunk, elementStart, length - elementStart);
+        }
+    }
+
+    private void processStringByte(byte b) {
+        if (escaped) {
+            escaped = false;
+        } else if (b == '\\') {
+            escaped = true;
+        } else if (b == '"') {
+            inString = false;
+            if (fieldName != null) {
+                lastString = fieldName.toString();
+                fieldName = null;
+            }
+            return;
+        }
+        if (fieldName != null) {
+            fieldName.append((char) (b & 0xFF));
+        }
+    }
+
+    /**
+     * Checks that the json was complete. Must be called after the last chunk.
+     */
+    public void end() {
+        if (!started || depth != 0 || inString) {
+            throw new DecodeException("Incomplete json-object");
+        }
+    }
+}
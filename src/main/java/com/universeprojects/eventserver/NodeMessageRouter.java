@@ -0,0 +1,339 @@
+package com.universeprojects.eventserver;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.spi.cluster.ClusterManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Routes messages to nodes instead of channel- and user-addresses.
+ * Every node registers a single consumer. Which channels and users are present on which node is kept in a
+ * directory that every node builds from the changes the other nodes publish. Local changes are collected and
+ * published in one delta per flush-interval, so connects and disconnects only touch local state.
+ */
+public class NodeMessageRouter implements MessageRouter {
+    public static final String CONFIG_DIRECTORY_FLUSH_INTERVAL = "node_directory_flush_interval";
+    public static final String CONFIG_DIRECTORY_REFRESH_INTERVAL = "node_directory_refresh_interval";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 100;
+    private static final long DEFAULT_REFRESH_INTERVAL = 30 * 1000;
+    private static final String ADDRESS_DIRECTORY = "node.directory";
+    private static final String HEADER_TYPE = "type";
+    private static final String HEADER_TARGET = "target";
+    private static final String TYPE_CHANNEL = "channel";
+    private static final String TYPE_PRIVATE = "private";
+    private static final String TYPE_UPDATE = "update";
+    private static final String OP_SYNC = "sync";
+    private static final String OP_SNAPSHOT = "snapshot";
+    private static final String OP_DELTA = "delta";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final EventServerVerticle verticle;
+    private final long flushInterval;
+    private final long refreshInterval;
+    private final String nodeId;
+    private final Map<String, List<Handler<ChatEnvelope>>> channelHandlers = new ConcurrentHashMap<>();
+    private final Map<String, Handler<ChatMessage>> privateMessageHandlers = new ConcurrentHashMap<>();
+    private final Map<String, Handler<JsonArray>> updateHandlers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> channelNodes = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> userNodes = new ConcurrentHashMap<>();
+    private final Set<String> knownNodes = ConcurrentHashMap.newKeySet();
+    private final Object pendingLock = new Object();
+    private Map<String, Boolean> pendingChannels = new LinkedHashMap<>();
+    private Map<String, Boolean> pendingUsers = new LinkedHashMap<>();
+    private Context context;
+
+    public NodeMessageRouter(EventServerVerticle verticle) {
+        this.verticle = verticle;
+        this.flushInterval = Config.getLong(CONFIG_DIRECTORY_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+        this.refreshInterval = Config.getLong(CONFIG_DIRECTORY_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+        final ClusterManager clusterManager = getClusterManager();
+        this.nodeId = clusterManager != null ? clusterManager.getNodeID() : UUID.randomUUID().toString();
+    }
+
+    public void start() {
+        final Vertx vertx = verticle.getVertx();
+        context = vertx.getOrCreateContext();
+        verticle.eventBus.<Object>consumer(generateNodeAddress(nodeId), this::processNodeMessage);
+        verticle.eventBus.<JsonObject>consumer(ADDRESS_DIRECTORY, (message) -> processDirectoryMessage(message.body()))
+            .completionHandler((result) -> {
+                if (result.failed()) {
+                    log.error("Could not register the node-directory consumer", result.cause());
+                    return;
+                }
+                //Only ask for the other nodes' snapshots once we are able to receive them
+                verticle.eventBus.publish(ADDRESS_DIRECTORY, new JsonObject().put("node", nodeId).put("op", OP_SYNC));
+            });
+        vertx.setPeriodic(flushInterval, (ignored) -> flushChanges());
+        vertx.setPeriodic(refreshInterval, (ignored) -> {
+            removeLeftNodes();
+            publishSnapshot();
+        });
+        log.info("Node-routing started for node " + nodeId);
+    }
+
+    private ClusterManager getClusterManager() {
+        return ((VertxInternal) verticle.getVertx()).getClusterManager();
+    }
+
+    private String generateNodeAddress(String node) {
+        return "node." + node;
+    }
+
+    @Override
+    public void publishChannelMessages(String channel, ChatEnvelope envelope) {
+        if (channelHandlers.containsKey(channel)) {
+            runOnContext(() -> dispatchChannelMessages(channel, envelope));
+        }
+        sendToNodes(channelNodes, channel, TYPE_CHANNEL, envelope);
+    }
+
+    @Override
+    public void publishPrivateMessage(String userId, ChatMessage message) {
+        if (privateMessageHandlers.containsKey(userId)) {
+            runOnContext(() -> dispatchPrivateMessage(userId, message));
+        }
+        sendToNodes(userNodes, userId, TYPE_PRIVATE, message);
+    }
+
+    @Override
+    public void publishUserUpdate(String userId, JsonArray channels) {
+        if (updateHandlers.containsKey(userId)) {
+            runOnContext(() -> dispatchUserUpdate(userId, channels));
+        }
+        sendToNodes(userNodes, userId, TYPE_UPDATE, channels);
+    }
+
+    @Override
+    public Registration registerChannel(String channel, Handler<ChatEnvelope> handler) {
+        channelHandlers.compute(channel, (key, handlers) -> {
+            if (handlers == null) {
+                handlers = new CopyOnWriteArrayList<>();
+                markChanged(pendingChannels, channel, true);
+            }
+            handlers.add(handler);
+            return handlers;
+        });
+        return () -> channelHandlers.computeIfPresent(channel, (key, handlers) -> {
+            handlers.remove(handler);
+            if (handlers.isEmpty()) {
+                markChanged(pendingChannels, channel, false);
+                return null;
+            }
+            return handlers;
+        });
+    }
+
+    @Override
+    public Registration registerUser(String userId, Handler<ChatMessage> privateMessageHandler, Handler<JsonArray> updateHandler) {
+        privateMessageHandlers.put(userId, privateMessageHandler);
+        updateHandlers.put(userId, updateHandler);
+        markChanged(pendingUsers, userId, true);
+        return () -> {
+            final boolean removed = privateMessageHandlers.remove(userId, privateMessageHandler);
+            updateHandlers.remove(userId, updateHandler);
+            if (removed) {
+                markChanged(pendingUsers, userId, false);
+            }
+        };
+    }
+
+    private void runOnContext(Runnable runnable) {
+        if (Vertx.currentContext() == context) {
+            runnable.run();
+        } else {
+            context.runOnContext((ignored) -> runnable.run());
+        }
+    }
+
+    private void sendToNodes(Map<String, Set<String>> directory, String target, String type, Object body) {
+        final Set<String> nodes = directory.get(target);
+        if (nodes == null || nodes.isEmpty()) {
+            return;
+        }
+        final DeliveryOptions options = new DeliveryOptions()
+            .addHeader(HEADER_TYPE, type)
+            .addHeader(HEADER_TARGET, target);
+        for (String node : nodes) {
+            verticle.eventBus.send(generateNodeAddress(node), body, options);
+        }
+    }
+
+    private void processNodeMessage(Message<Object> message) {
+        final String type = message.headers().get(HEADER_TYPE);
+        final String target = message.headers().get(HEADER_TARGET);
+        switch (type) {
+            case TYPE_CHANNEL:
+                dispatchChannelMessages(target, (ChatEnvelope) message.body());
+                break;
+            case TYPE_PRIVATE:
+                dispatchPrivateMessage(target, (ChatMessage) message.body());
+                break;
+            case TYPE_UPDATE:
+                dispatchUserUpdate(target, (JsonArray) message.body());
+                break;
+            default:
+                log.warn("Received node-message of unknown type " + type);
+        }
+    }
+
+    private void dispatchChannelMessages(String channel, ChatEnvelope envelope) {
+        final List<Handler<ChatEnvelope>> handlers = channelHandlers.get(channel);
+        if (handlers == null) {
+            return;
+        }
+        for (Handler<ChatEnvelope> handler : handlers) {
+            handler.handle(ChatEnvelopeCodec.INSTANCE.transform(envelope));
+        }
+    }
+
+    private void dispatchPrivateMessage(String userId, ChatMessage message) {
+        final Handler<ChatMessage> handler = privateMessageHandlers.get(userId);
+        if (handler != null) {
+            handler.handle(ChatMessageCodec.INSTANCE.transform(message));
+        }
+    }
+
+    private void dispatchUserUpdate(String userId, JsonArray channels) {
+        final Handler<JsonArray> handler = updateHandlers.get(userId);
+        if (handler != null) {
+            handler.handle(channels.copy());
+        }
+    }
+
+    private void markChanged(Map<String, Boolean> pending, String key, boolean present) {
+        synchronized (pendingLock) {
+            pending.put(key, present);
+        }
+    }
+
+    private void flushChanges() {
+        final Map<String, Boolean> channels;
+        final Map<String, Boolean> users;
+        synchronized (pendingLock) {
+            if (pendingChannels.isEmpty() && pendingUsers.isEmpty()) {
+                return;
+            }
+            channels = pendingChannels;
+            users = pendingUsers;
+            pendingChannels = new LinkedHashMap<>();
+            pendingUsers = new LinkedHashMap<>();
+        }
+        final JsonObject json = new JsonObject()
+            .put("node", nodeId)
+            .put("op", OP_DELTA)
+            .put("channels", new JsonObject(new LinkedHashMap<String, Object>(channels)))
+            .put("users", new JsonObject(new LinkedHashMap<String, Object>(users)));
+        verticle.eventBus.publish(ADDRESS_DIRECTORY, json);
+    }
+
+    private void publishSnapshot() {
+        final JsonObject json = new JsonObject()
+            .put("node", nodeId)
+            .put("op", OP_SNAPSHOT)
+            .put("channels", new JsonArray(new ArrayList<>(channelHandlers.keySet())))
+            .put("users", new JsonArray(new ArrayList<>(privateMessageHandlers.keySet())));
+        verticle.eventBus.publish(ADDRESS_DIRECTORY, json);
+    }
+
+    private void processDirectoryMessage(JsonObject json) {
+        final String node = json.getString("node");
+        if (nodeId.equals(node)) {
+            return;
+        }
+        switch (json.getString("op")) {
+            case OP_SYNC:
+                publishSnapshot();
+                break;
+            case OP_SNAPSHOT:
+                knownNodes.add(node);
+                replaceNode(channelNodes, json.getJsonArray("channels"), node);
+                replaceNode(userNodes, json.getJsonArray("users"), node);
+                break;
+            case OP_DELTA:
+                knownNodes.add(node);
+                applyDelta(channelNodes, json.getJsonObject("channels"), node);
+                applyDelta(userNodes, json.getJsonObject("users"), node);
+                break;
+        }
+    }
+
+    private void applyDelta(Map<String, Set<String>> directory, JsonObject changes, String node) {
+        for (Map.Entry<String, Object> entry : changes) {
+            if ((Boolean) entry.getValue()) {
+                addNode(directory, entry.getKey(), node);
+            } else {
+                removeNode(directory, entry.getKey(), node);
+            }
+        }
+    }
+
+    private void addNode(Map<String, Set<String>> directory, String key, String node) {
+        directory.computeIfAbsent(key, (ignored) -> ConcurrentHashMap.newKeySet()).add(node);
+    }
+
+    private void removeNode(Map<String, Set<String>> directory, String key, String node) {
+        directory.computeIfPresent(key, (ignored, nodes) -> {
+            nodes.remove(node);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    /**
+     * Makes the node present for exactly the given keys. The keys the node keeps are never removed in between,
+     * so messages published while a snapshot is applied still reach it.
+     */
+    private void replaceNode(Map<String, Set<String>> directory, JsonArray keys, String node) {
+        final Set<String> present = new HashSet<>();
+        for (Object key : keys) {
+            present.add((String) key);
+            addNode(directory, (String) key, node);
+        }
+        for (String key : directory.keySet()) {
+            if (!present.contains(key)) {
+                removeNode(directory, key, node);
+            }
+        }
+    }
+
+    private void removeNode(String node) {
+        for (String channel : channelNodes.keySet()) {
+            removeNode(channelNodes, channel, node);
+        }
+        for (String userId : userNodes.keySet()) {
+            removeNode(userNodes, userId, node);
+        }
+        knownNodes.remove(node);
+    }
+
+    private void removeLeftNodes() {
+        final ClusterManager clusterManager = getClusterManager();
+        if (clusterManager == null) {
+            return;
+        }
+        final Set<String> nodes = new HashSet<>(clusterManager.getNodes());
+        for (String node : knownNodes) {
+            if (!nodes.contains(node)) {
+                log.info("Removing node " + node + " from the directory");
+                removeNode(node);
+            }
+        }
+    }
+}
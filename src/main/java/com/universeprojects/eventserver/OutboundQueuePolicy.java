@@ -0,0 +1,44 @@
+package com.universeprojects.eventserver;
+
+public class OutboundQueuePolicy {
+    public static final String CONFIG_OUTBOUND_QUEUE_MAX_BYTES = "outbound_queue_max_bytes";
+    public static final String CONFIG_OUTBOUND_QUEUE_OVERFLOW = "outbound_queue_overflow";
+    public static final String CONFIG_OUTBOUND_QUEUE_DISCONNECT_AFTER = "outbound_queue_disconnect_after";
+
+    private static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    private static final long DEFAULT_DISCONNECT_AFTER = 10 * 1000;
+
+    public enum Overflow {
+        /** Drops the oldest queued frames until the queue fits again */
+        DROP_OLDEST,
+        /** Replaces all queued frames by the newest one */
+        CONFLATE,
+        /** Keeps queueing and closes the socket once the limit was exceeded for disconnectAfter ms */
+        DISCONNECT
+    }
+
+    public final long maxBytes;
+    public final Overflow overflow;
+    public final long disconnectAfter;
+
+    public OutboundQueuePolicy() {
+        this(Config.getLong(CONFIG_OUTBOUND_QUEUE_MAX_BYTES, DEFAULT_MAX_BYTES),
+            Config.getEnum(CONFIG_OUTBOUND_QUEUE_OVERFLOW, Overflow.class, Overflow.DROP_OLDEST),
+            Config.getLong(CONFIG_OUTBOUND_QUEUE_DISCONNECT_AFTER, DEFAULT_DISCONNECT_AFTER));
+    }
+
+    public OutboundQueuePolicy(long maxBytes, Overflow overflow, long disconnectAfter) {
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+        this.disconnectAfter = disconnectAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueuePolicy{" +
+            "maxBytes=" + maxBytes +
+            ", overflow=" + overflow +
+            ", disconnectAfter=" + disconnectAfter +
+            '}';
+    }
+}
@@ -1,18 +1,22 @@
 package com.universeprojects.eventserver;
 
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.async.RedisAsyncCommands;
-import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
 import java.time.Duration;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class RedisHistoryService implements HistoryService {
@@ -26,17 +30,21 @@ public class RedisHistoryService implements HistoryService {
 
     private final RedisClient redisClient;
     private final RedisChatCodec redisChatCodec;
-    private final long historyExpireSeconds;
+    private final HistoryPolicies historyPolicies;
     private final StatefulRedisConnection<String, ChatMessage> connection;
+    private final StatefulRedisConnection<String, ChatMessage> fetchConnection;
 
-    public RedisHistoryService() {
+    public RedisHistoryService(HistoryPolicies historyPolicies) {
         final String hostname = Config.getString(CONFIG_REDIS_HOST, "redis");
         final int port = Config.getInt(CONFIG_REDIS_PORT, 6379);
         final Duration duration = Duration.ofSeconds(10);
         this.redisClient = RedisClient.create(new RedisURI(hostname, port, duration));
         this.redisChatCodec = new RedisChatCodec();
-        this.historyExpireSeconds = Config.getLong(CONFIG_HISTORY_EXPIRE, 24 * 60 * 60);
+        this.historyPolicies = historyPolicies;
         this.connection = this.redisClient.connect(redisChatCodec);
+        //Commands are only written on flushCommands, which would also hold back the commands of other callers
+        this.fetchConnection = this.redisClient.connect(redisChatCodec);
+        this.fetchConnection.setAutoFlushCommands(false);
     }
 
     @Override
@@ -54,37 +62,47 @@ public class RedisHistoryService implements HistoryService {
         commands.multi().whenComplete(errorHandler);
         commands.lpush(key, messageArray).whenComplete(errorHandler);
         commands.ltrim(key, 0, historySize).whenComplete(errorHandler);
-        if(isVolatileChannel(channel)) {
-            commands.expire(key, historyExpireSeconds);
+        final long ttlSeconds = historyPolicies.get(channel).ttlSeconds;
+        if(ttlSeconds > 0) {
+            commands.expire(key, ttlSeconds);
         }
         commands.exec().whenComplete(errorHandler);
     }
 
-    private boolean isVolatileChannel(String channel) {
-        return channel.startsWith("?");
-    }
-
+    /**
+     * The LRANGE-commands of all channels are written at once on the fetch-connection, so they take a single
+     * round-trip.
+     */
     @Override
-    public void fetchHistoryMessages(Set<String> channels, int historySize, BiConsumer<String, List<ChatMessage>> messageHandler) {
-        final RedisAsyncCommands<String, ChatMessage> commands = connection.async();
-        for (final String channel : channels) {
-            final String key = generateChannelKey(channel);
-            commands.lrange(key, 0, historySize - 1).whenComplete(
-                (list, ex) -> {
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Map<String, CompletableFuture<List<ChatMessage>>> futures = new LinkedHashMap<>();
+        synchronized (fetchConnection) {
+            final RedisAsyncCommands<String, ChatMessage> commands = fetchConnection.async();
+            for (final String channel : channels) {
+                final RedisFuture<List<ChatMessage>> future = commands.lrange(generateChannelKey(channel), 0, historySize - 1);
+                futures.put(channel, future.toCompletableFuture().handle((list, ex) -> {
                     if (ex != null) {
                         log.error("Error fetching history entries", ex);
-                    } else {
-                        Collections.reverse(list); //Redis returns a reversed list
-                        list.forEach((message) -> {
-                            if(message.additionalData == null) {
-                                message.additionalData = new JsonObject();
-                            }
-                            message.additionalData.put("__history", true);
-                        });
-                        messageHandler.accept(channel, list);
+                        return null;
                     }
-                });
+                    return list;
+                }));
+            }
+            fetchConnection.flushCommands();
         }
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).thenRun(() -> {
+            final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<List<ChatMessage>>> entry : futures.entrySet()) {
+                final List<ChatMessage> list = entry.getValue().join();
+                if (list == null) {
+                    continue;
+                }
+                Collections.reverse(list); //Redis returns a reversed list
+                list.replaceAll(ChatMessage::asHistory);
+                result.put(entry.getKey(), list);
+            }
+            resultHandler.accept(result);
+        });
     }
 
     private String generateChannelKey(String channel) {
@@ -0,0 +1,238 @@
+package com.universeprojects.eventserver;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.output.CommandOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the history of every channel in a Redis stream (Redis 5 or newer).
+ * Messages are added with XADD and an approximate MAXLEN, so Redis trims whole nodes of the stream instead of single
+ * entries. The stream-ID of a message is sent along with its history as {@link ChatMessage#DATA_HISTORY_ID}.
+ * The client-library doesn't know the stream-commands yet, so they are sent with dispatch.
+ * A sorted set per channel maps the sequence-numbers of the newest messages to their stream-IDs. Messages arrive in the
+ * stream in the order they were sent by the nodes, which may differ from their sequence-numbers, so pages are read
+ * through that index by a script, which takes a single round-trip.
+ */
+@SuppressWarnings("FieldCanBeLocal")
+public class RedisStreamHistoryService implements HistoryService {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String FIELD_MESSAGE = "m";
+
+    /**
+     * KEYS: stream, index. ARGV: maxMessages, ttlSeconds, then the sequence-number (empty if the message has none) and
+     * the message for every message.
+     */
+    private static final String SCRIPT_STORE = "redis.replicate_commands()\n" +
+        "for i = 3, #ARGV, 2 do\n" +
+        "  local id = redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', '" + FIELD_MESSAGE + "', ARGV[i + 1])\n" +
+        "  if ARGV[i] ~= '' then redis.call('ZADD', KEYS[2], ARGV[i], id) end\n" +
+        "end\n" +
+        "redis.call('ZREMRANGEBYRANK', KEYS[2], 0, -tonumber(ARGV[1]) - 1)\n" +
+        "if tonumber(ARGV[2]) > 0 then\n" +
+        "  redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+        "  redis.call('EXPIRE', KEYS[2], ARGV[2])\n" +
+        "end\n" +
+        "return 'OK'";
+
+    /**
+     * KEYS: stream, index. ARGV: minimum and maximum sequence-number in ZRANGEBYSCORE-syntax, limit, and 1 to read the
+     * page from the maximum on. Returns the stream-entries in the format of XRANGE.
+     */
+    private static final String SCRIPT_PAGE = "local ids\n" +
+        "if ARGV[4] == '1' then\n" +
+        "  ids = redis.call('ZREVRANGEBYSCORE', KEYS[2], ARGV[2], ARGV[1], 'LIMIT', 0, ARGV[3])\n" +
+        "else\n" +
+        "  ids = redis.call('ZRANGEBYSCORE', KEYS[2], ARGV[1], ARGV[2], 'LIMIT', 0, ARGV[3])\n" +
+        "end\n" +
+        "local entries = {}\n" +
+        "for i = 1, #ids do\n" +
+        "  local entry = redis.call('XRANGE', KEYS[1], ids[i], ids[i])[1]\n" +
+        "  if entry then entries[#entries + 1] = entry end\n" +
+        "end\n" +
+        "return entries";
+
+    private enum StreamCommand implements ProtocolKeyword {
+        XREVRANGE, EVAL;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private final RedisClient redisClient;
+    private final RedisChatCodec redisChatCodec;
+    private final HistoryPolicies historyPolicies;
+    private final StatefulRedisConnection<String, ChatMessage> connection;
+    private final StatefulRedisConnection<String, ChatMessage> fetchConnection;
+
+    public RedisStreamHistoryService(HistoryPolicies historyPolicies) {
+        final String hostname = Config.getString(RedisHistoryService.CONFIG_REDIS_HOST, "redis");
+        final int port = Config.getInt(RedisHistoryService.CONFIG_REDIS_PORT, 6379);
+        final Duration duration = Duration.ofSeconds(10);
+        this.redisClient = RedisClient.create(new RedisURI(hostname, port, duration));
+        this.redisChatCodec = new RedisChatCodec();
+        this.historyPolicies = historyPolicies;
+        this.connection = this.redisClient.connect(redisChatCodec);
+        //Commands are only written on flushCommands, which would also hold back the commands of other callers
+        this.fetchConnection = this.redisClient.connect(redisChatCodec);
+        this.fetchConnection.setAutoFlushCommands(false);
+    }
+
+    @Override
+    public void storeChatHistory(String channel, int historySize, List<ChatMessage> messages) {
+        if (messages.isEmpty()) return;
+        final CommandArgs<String, ChatMessage> args = new CommandArgs<>(redisChatCodec)
+            .add(SCRIPT_STORE)
+            .add(2).addKey(generateChannelKey(channel)).addKey(generateIndexKey(channel))
+            .add(historySize)
+            .add(historyPolicies.get(channel).ttlSeconds);
+        for (ChatMessage message : messages) {
+            final Long sequence = message.getSequence();
+            args.add(sequence != null ? sequence.toString() : "").addValue(message);
+        }
+        connection.async().dispatch(StreamCommand.EVAL, new StatusOutput<>(redisChatCodec), args).whenComplete((result, ex) -> {
+            if (ex != null) {
+                log.error("Error storing history entries", ex);
+            }
+        });
+    }
+
+    /**
+     * The XREVRANGE-commands of all channels are written at once on the fetch-connection, so they take a single
+     * round-trip.
+     */
+    @Override
+    public void fetchAllHistoryMessages(Set<String> channels, int historySize, Consumer<Map<String, List<ChatMessage>>> resultHandler) {
+        final Map<String, CompletableFuture<List<ChatMessage>>> futures = new LinkedHashMap<>();
+        synchronized (fetchConnection) {
+            final RedisAsyncCommands<String, ChatMessage> commands = fetchConnection.async();
+            for (final String channel : channels) {
+                final CommandArgs<String, ChatMessage> args = new CommandArgs<>(redisChatCodec)
+                    .addKey(generateChannelKey(channel))
+                    .add("+").add("-")
+                    .add("COUNT").add(historySize);
+                futures.put(channel, handleErrors(commands.dispatch(StreamCommand.XREVRANGE, new StreamEntryOutput(redisChatCodec), args)));
+            }
+            fetchConnection.flushCommands();
+        }
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).thenRun(() -> {
+            final Map<String, List<ChatMessage>> result = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<List<ChatMessage>>> entry : futures.entrySet()) {
+                final List<ChatMessage> list = entry.getValue().join();
+                if (list == null) {
+                    continue;
+                }
+                Collections.reverse(list); //XREVRANGE returns the newest message first
+                result.put(entry.getKey(), list);
+            }
+            resultHandler.accept(result);
+        });
+    }
+
+    /**
+     * Pages without cursor also contain the messages without sequence-number, which aren't in the index, so they are
+     * selected from the whole history.
+     */
+    @Override
+    public void fetchHistoryPage(String channel, int historySize, Long before, Long after, int limit, Consumer<List<ChatMessage>> resultHandler) {
+        if (before == null && after == null) {
+            HistoryService.super.fetchHistoryPage(channel, historySize, null, null, limit, resultHandler);
+            return;
+        }
+        final boolean reverse = after == null;
+        final CommandArgs<String, ChatMessage> args = new CommandArgs<>(redisChatCodec)
+            .add(SCRIPT_PAGE)
+            .add(2).addKey(generateChannelKey(channel)).addKey(generateIndexKey(channel))
+            .add(after != null ? "(" + after : "-inf")
+            .add(before != null ? "(" + before : "+inf")
+            .add(limit)
+            .add(reverse ? "1" : "0");
+        final CompletableFuture<List<ChatMessage>> future;
+        synchronized (fetchConnection) {
+            future = handleErrors(fetchConnection.async().dispatch(StreamCommand.EVAL, new StreamEntryOutput(redisChatCodec), args));
+            fetchConnection.flushCommands();
+        }
+        future.thenAccept((list) -> {
+            if (list != null && reverse) {
+                Collections.reverse(list);
+            }
+            resultHandler.accept(list);
+        });
+    }
+
+    private CompletableFuture<List<ChatMessage>> handleErrors(RedisFuture<List<ChatMessage>> future) {
+        return future.toCompletableFuture().handle((list, ex) -> {
+            if (ex != null) {
+                log.error("Error fetching history entries", ex);
+                return null;
+            }
+            return list;
+        });
+    }
+
+    private String generateChannelKey(String channel) {
+        return "history:" + channel;
+    }
+
+    private String generateIndexKey(String channel) {
+        return "history-index:" + channel;
+    }
+
+    /**
+     * Decodes stream-entries in the format of XRANGE into history-messages. Every entry consists of its ID, the field-name
+     * and the message, as only a single field is stored per entry.
+     */
+    private static class StreamEntryOutput extends CommandOutput<String, ChatMessage, List<ChatMessage>> {
+        private int position = 0;
+        private String historyId;
+
+        private StreamEntryOutput(RedisCodec<String, ChatMessage> codec) {
+            super(codec, new ArrayList<>());
+        }
+
+        @Override
+        public void set(ByteBuffer bytes) {
+            switch (position++ % 3) {
+                case 0:
+                    historyId = decodeAscii(bytes);
+                    break;
+                case 1:
+                    break;
+                default:
+                    final ChatMessage message = codec.decodeValue(bytes);
+                    //The decoded message is the only one using its additionalData
+                    final JsonObject data = message.additionalData != null ? message.additionalData : new JsonObject();
+                    data.put(ChatMessage.DATA_HISTORY, true);
+                    data.put(ChatMessage.DATA_HISTORY_ID, historyId);
+                    output.add(ChatMessage.decoded(message.senderUserId, message.senderDisplayName, message.channel, message.text, message.timestamp, data, message.targetUserIds));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.universeprojects.eventserver;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reserves sequence-numbers for messages of a channel and returns the last reserved number.
+ * A channel without entry starts at the given floor, the newest sequence-number in its history. If the floor is
+ * unknown, nothing is reserved and null is returned, so the caller can look it up and try again.
+ */
+public class SequenceProcessor extends AbstractEntryProcessor<String, Long> implements DataSerializable {
+    public static final long UNKNOWN_FLOOR = -1;
+
+    private static final long serialVersionUID = 1L;
+
+    private int count;
+    private long floor;
+
+    @SuppressWarnings("unused")
+    public SequenceProcessor() {
+    }
+
+    public SequenceProcessor(int count, long floor) {
+        this.count = count;
+        this.floor = floor;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, Long> entry) {
+        final Long current = entry.getValue();
+        if (current == null && floor == UNKNOWN_FLOOR) {
+            return null;
+        }
+        final long last = Math.max(current != null ? current : 0, floor) + count;
+        entry.setValue(last);
+        return last;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeLong(floor);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        count = in.readInt();
+        floor = in.readLong();
+    }
+}
@@ -2,8 +2,6 @@ package com.universeprojects.eventserver;
 
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.shareddata.AsyncMap;
 import io.vertx.core.shareddata.Lock;
 import io.vertx.core.shareddata.SharedData;
 
@@ -22,13 +20,6 @@ public class SharedDataService {
         sd.getLockWithTimeout(name, 10 * 1000, handler);
     }
 
-    public void getChannelLock(String key, Handler<AsyncResult<Lock>> handler) {
-        sd.getLockWithTimeout("messages:"+key, 1000, handler);
-    }
-
-    public void getMessageMap(Handler<AsyncResult<AsyncMap<String, JsonArray>>> resultHandler) {
-        sd.getClusterWideMap("messages", resultHandler);
-    }
 
 
 
@@ -1,8 +1,12 @@
 package com.universeprojects.eventserver;
 
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.prometheus.client.Histogram;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -10,31 +14,47 @@ import io.vertx.ext.web.Session;
 import io.vertx.ext.web.handler.sockjs.SockJSSocket;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiConsumer;
 
 public class SockJSSocketHandler implements Handler<SockJSSocket> {
 
+    public static final String CONFIG_HISTORY_ON_CONNECT = "history_on_connect";
     public static final String PARAM_TOKEN = "token";
     public static final String PARAM_FETCH_OLD_MESSAGES = "fetchOldMessages";
+    public static final String PARAM_SINCE = "since";
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     public static final String TOKEN_ANONYMOUS = "anonymous";
     public static final String SOCKET_MESSAGE_UPDATE = "update";
+    public static final String SOCKET_COMMAND_HISTORY = "history";
+    public static final String SOCKET_COMMAND_LOAD_HISTORY = "loadHistory";
+    public static final String SOCKET_FIELD_COMMAND = "command";
+    private static final Histogram HISTOGRAM_LOAD_CHANNELS = Histogram.build().name("history_load_channels").help("Channels whose history was requested by a socket in one batch").buckets(1, 2, 5, 10, 20, 50).register();
+
     private final EventServerVerticle verticle;
+    private final boolean historyOnConnect;
+    private final ConcurrentMap<ClientSocket, HistoryLoad> historyLoads = new ConcurrentHashMap<>();
 
     public SockJSSocketHandler(EventServerVerticle verticle) {
         this.verticle = verticle;
-
+        this.historyOnConnect = Config.getBoolean(CONFIG_HISTORY_ON_CONNECT, true);
     }
 
     @Override
     public void handle(final SockJSSocket socket) {
+        final Context context = verticle.getVertx().getOrCreateContext();
         verticle.getVertx().executeBlocking((future) -> {
             try {
-                handleConnection(socket);
+                handleConnection(socket, context);
                 future.complete();
             } catch (Exception ex) {
                 log.error("Error processing socket connection", ex);
@@ -43,19 +63,20 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
         }, false, (future) -> {});
     }
 
-    public void handleConnection(final SockJSSocket socket) {
+    public void handleConnection(final SockJSSocket socket, final Context context) {
         final Session session = socket.webSession();
         final User sessionUser = verticle.sessionService.getUserForSession(session.id());
         final String uri = socket.uri();
         final QueryStringDecoder queryStringDecoder = new QueryStringDecoder(uri);
         final Map<String, List<String>> params = queryStringDecoder.parameters();
         final String token = extractParam(params, PARAM_TOKEN, TOKEN_ANONYMOUS);
-        final boolean fetchOldMessages = Boolean.valueOf(extractParam(params, PARAM_FETCH_OLD_MESSAGES, Boolean.TRUE.toString()));
+        final boolean fetchOldMessages = Boolean.valueOf(extractParam(params, PARAM_FETCH_OLD_MESSAGES, Boolean.toString(historyOnConnect)));
+        final Map<String, Long> since = parseSince(extractParam(params, PARAM_SINCE, null));
 
         verticle.logConnectionEvent(() -> "Established connection on " + socket.localAddress() + " to client " + socket.remoteAddress());
 
         final BiConsumer<User, Set<String>> onSuccess = (newUser, channels) ->
-            processNewUser(socket, token, fetchOldMessages, newUser, channels);
+            processNewUser(socket, context, token, fetchOldMessages, since, newUser, channels);
 
         if (verticle.serverMode == EventServerVerticle.ServerMode.TEST_CLIENT) {
             AuthResponse authResponse = new AuthResponse(true, token);
@@ -63,22 +84,56 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
             authResponse.channels.add("group.test");
             onAuthSuccess(sessionUser, authResponse, onSuccess);
         } else {
-            executeAuthentication(socket, sessionUser, token, onSuccess);
+            executeAuthentication(socket, sessionUser, token, true, onSuccess);
         }
     }
 
-    private void processNewUser(SockJSSocket socket, String token, boolean fetchOldMessages, User newUser, Set<String> channels) {
-        setupSocket(socket, newUser, token);
+    private void processNewUser(SockJSSocket socket, Context context, String token, boolean fetchOldMessages, Map<String, Long> since, User newUser, Set<String> channels) {
+        final ClientSocket clientSocket = setupSocket(socket, context, newUser, token);
         verticle.channelService.updateSubscriptions(newUser, channels);
-        if (fetchOldMessages) {
-            verticle.fetchHistoryMessages(channels, (channel, messages) -> {
-                verticle.logConnectionEvent(() -> "Sending old messages for channel " + channel + " to user " + newUser);
-                ChatEnvelope envelope = ChatEnvelope.forMessages(messages);
-                send(socket, envelope);
+        final Set<String> historyChannels = new LinkedHashSet<>();
+        for (String channel : channels) {
+            if (fetchOldMessages || since.containsKey(channel)) {
+                historyChannels.add(channel);
+            }
+        }
+        if (!historyChannels.isEmpty()) {
+            verticle.fetchHistoryMessages(historyChannels, since, (result) -> {
+                verticle.logConnectionEvent(() -> "Sending old messages for channels " + result.keySet() + " to user " + newUser);
+                sendHistory(clientSocket, result, since);
             });
         }
     }
 
+    /**
+     * Parses the last sequence-number the client received per channel, given as json-object. Invalid entries are
+     * ignored, so the client gets the whole history for them.
+     */
+    private Map<String, Long> parseSince(String value) {
+        if (value == null) {
+            return Collections.emptyMap();
+        }
+        try {
+            return parseSince(new JsonObject(value));
+        } catch (DecodeException ex) {
+            log.warn("Bad since-parameter: " + ex.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    private Map<String, Long> parseSince(JsonObject json) {
+        if (json == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Long> since = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : json) {
+            if (entry.getValue() instanceof Number) {
+                since.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+            }
+        }
+        return since;
+    }
+
     private String extractParam(Map<String, List<String>> params, String key, String defaultValue) {
         List<String> values = params.get(key);
         final String token;
@@ -90,9 +145,9 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
         return token;
     }
 
-    private void executeAuthentication(SockJSSocket socket, User user, String token, BiConsumer<User, Set<String>> onSuccess) {
+    private void executeAuthentication(SockJSSocket socket, User user, String token, boolean allowCached, BiConsumer<User, Set<String>> onSuccess) {
         verticle.logConnectionEvent(() -> "Authenticating connection " + socket.remoteAddress());
-        verticle.authService.authenticate(token, (authResponse) -> {
+        verticle.authService.authenticate(token, allowCached, (authResponse) -> {
             verticle.logConnectionEvent(() -> "Authentication for connection " + socket.remoteAddress() + ": " + authResponse.success);
             if (authResponse.success) {
                 onAuthSuccess(user, authResponse, onSuccess);
@@ -127,15 +182,56 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
         }
     }
 
-    private void send(SockJSSocket socket, ChatEnvelope envelope) {
-        JsonObject json = envelope.toJson();
-        Buffer buffer = json.toBuffer();
-        socket.write(buffer);
+    private void send(ClientSocket socket, ChatEnvelope envelope) {
+        socket.send(envelope.toBuffer());
+    }
+
+    /**
+     * Sends the history of all channels as a single envelope. For the channels in since only the messages after the
+     * given sequence-number are sent. If the history doesn't reach back to that number, the whole history of the
+     * channel is sent and the channel is marked as truncated.
+     */
+    private void sendHistory(ClientSocket socket, Map<String, List<ChatMessage>> history, Map<String, Long> since) {
+        final List<ChatMessage> messages = new ArrayList<>();
+        final List<String> truncatedChannels = new ArrayList<>();
+        for (Map.Entry<String, List<ChatMessage>> entry : history.entrySet()) {
+            final Long last = since.get(entry.getKey());
+            if (last == null) {
+                final List<ChatMessage> channelMessages = entry.getValue();
+                final int connectSize = verticle.getChannelHistoryConnectSize();
+                messages.addAll(channelMessages.subList(Math.max(0, channelMessages.size() - connectSize), channelMessages.size()));
+                continue;
+            }
+            final List<ChatMessage> missed = new ArrayList<>();
+            Long newest = null;
+            for (ChatMessage message : entry.getValue()) {
+                final Long sequence = message.getSequence();
+                if (sequence != null && sequence > last) {
+                    missed.add(message);
+                }
+                if (sequence != null) {
+                    newest = sequence;
+                }
+            }
+            //A client that is ahead of the history has numbers from before the counter was reset
+            final boolean truncated = !missed.isEmpty() ? missed.get(0).getSequence() > last + 1 : newest != null && newest < last;
+            if (truncated) {
+                messages.addAll(entry.getValue());
+                truncatedChannels.add(entry.getKey());
+            } else {
+                messages.addAll(missed);
+            }
+        }
+        if (!truncatedChannels.isEmpty()) {
+            send(socket, ChatEnvelope.forHistory(messages, truncatedChannels));
+        } else if (!messages.isEmpty()) {
+            send(socket, ChatEnvelope.forMessages(messages));
+        }
     }
 
     private void onAuthError(SockJSSocket socket, String message) {
         ChatEnvelope envelope = ChatEnvelope.forError(message);
-        send(socket, envelope);
+        socket.write(envelope.toJson().toBuffer());
         closeSocket(socket);
     }
 
@@ -148,14 +244,15 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
         }
     }
 
-    private void setupSocket(SockJSSocket socket, User user, String token) {
-        user.executeLocked(u -> u.registerSocket(socket));
+    private ClientSocket setupSocket(SockJSSocket socket, Context context, User user, String token) {
+        final ClientSocket clientSocket = user.executeLockedReturning(u -> u.registerSocket(socket, context, verticle.outboundQueuePolicy));
         socket.handler((buffer) -> onSocketMessage(socket, user, token, buffer));
         socket.exceptionHandler((throwable) ->
             onSocketException(user, socket, throwable)
         );
         socket.endHandler((ignored) -> onDisconnect(socket, user));
         verticle.sessionService.putSession(socket, user);
+        return clientSocket;
     }
 
     private void onSocketException(User user, SockJSSocket socket, Throwable throwable) {
@@ -179,7 +276,17 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
 
     private void onSocketMessage(SockJSSocket socket, User user, String token, Buffer buffer) {
         if (buffer.length() == SOCKET_MESSAGE_UPDATE.length() && SOCKET_MESSAGE_UPDATE.equals(buffer.toString())) {
-            updateChannelsForSocket(socket, user, token);
+            updateChannelsForSocket(socket, user, token, Collections.emptyMap());
+            return;
+        }
+        final JsonObject command = parseCommand(buffer);
+        if (command != null && SOCKET_MESSAGE_UPDATE.equals(command.getValue(SOCKET_FIELD_COMMAND))) {
+            final Object since = command.getValue(PARAM_SINCE);
+            updateChannelsForSocket(socket, user, token, parseSince(since instanceof JsonObject ? (JsonObject) since : null));
+        } else if (command != null && SOCKET_COMMAND_HISTORY.equals(command.getValue(SOCKET_FIELD_COMMAND))) {
+            sendHistoryPage(socket, user, command);
+        } else if (command != null && SOCKET_COMMAND_LOAD_HISTORY.equals(command.getValue(SOCKET_FIELD_COMMAND))) {
+            loadHistory(socket, user, command);
         } else {
             Buffer loggedBuffer = buffer;
             if (loggedBuffer.length() > 100) {
@@ -189,15 +296,119 @@ public class SockJSSocketHandler implements Handler<SockJSSocket> {
         }
     }
 
-    private void updateChannelsForSocket(SockJSSocket socket, User user, String token) {
+    /**
+     * Commands with parameters are sent as json-objects with the name of the command in the field "command".
+     */
+    private JsonObject parseCommand(Buffer buffer) {
+        if (buffer.length() == 0 || buffer.getByte(0) != '{') {
+            return null;
+        }
+        try {
+            return buffer.toJsonObject();
+        } catch (DecodeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Clients that connect without history ask for the history of the channels they show with
+     * {"command": "loadHistory", "channels": [...], "since": {...}}. The channels requested by a socket until the
+     * next tick of its context are fetched together and sent as one frame.
+     */
+    private void loadHistory(SockJSSocket socket, User user, JsonObject command) {
+        final ClientSocket clientSocket = user.clientSockets.get(socket);
+        final Object channels = command.getValue("channels");
+        if (clientSocket == null || !(channels instanceof JsonArray)) {
+            return;
+        }
+        final Object since = command.getValue(PARAM_SINCE);
+        final Map<String, Long> parsedSince = parseSince(since instanceof JsonObject ? (JsonObject) since : null);
+        final Set<String> subscribed = new LinkedHashSet<>();
+        user.executeLocked((u) -> {
+            for (Object channel : (JsonArray) channels) {
+                if (channel instanceof String && u.channelSubscriptions.containsKey(channel)) {
+                    subscribed.add((String) channel);
+                }
+            }
+        });
+        if (subscribed.isEmpty()) {
+            return;
+        }
+        final boolean[] created = new boolean[1];
+        historyLoads.compute(clientSocket, (key, existing) -> {
+            final HistoryLoad load = existing != null ? existing : new HistoryLoad();
+            created[0] = existing == null;
+            load.channels.addAll(subscribed);
+            load.since.putAll(parsedSince);
+            return load;
+        });
+        if (created[0]) {
+            clientSocket.context.runOnContext((ignored) -> sendHistoryLoad(clientSocket));
+        }
+    }
+
+    private void sendHistoryLoad(ClientSocket clientSocket) {
+        final HistoryLoad load = historyLoads.remove(clientSocket);
+        if (load == null) {
+            return;
+        }
+        HISTOGRAM_LOAD_CHANNELS.observe(load.channels.size());
+        verticle.fetchHistoryMessages(load.channels, load.since, (result) -> sendHistory(clientSocket, result, load.since));
+    }
+
+    private static class HistoryLoad {
+        private final Set<String> channels = new LinkedHashSet<>();
+        private final Map<String, Long> since = new LinkedHashMap<>();
+    }
+
+    /**
+     * Sends a page of the history of a channel the user is subscribed to, as {"page": {...}}. The parameters are the
+     * same as for the /history endpoint.
+     */
+    private void sendHistoryPage(SockJSSocket socket, User user, JsonObject command) {
+        final Object channel = command.getValue("channel");
+        final Object before = command.getValue("before");
+        final Object after = command.getValue("after");
+        final Object limit = command.getValue("limit", HistoryPageHandler.DEFAULT_LIMIT);
+        final boolean valid = channel instanceof String && (before == null || before instanceof Number)
+            && (after == null || after instanceof Number) && limit instanceof Number && ((Number) limit).intValue() > 0;
+        if (!valid || !user.executeLockedReturning((u) -> u.channelSubscriptions.containsKey(channel))) {
+            log.warn("Bad history-command for user " + user + ": " + command.encode());
+            return;
+        }
+        final Long beforeSequence = before != null ? ((Number) before).longValue() : null;
+        final Long afterSequence = after != null ? ((Number) after).longValue() : null;
+        verticle.fetchHistoryPage((String) channel, beforeSequence, afterSequence, ((Number) limit).intValue(), (messages) -> {
+            final ClientSocket clientSocket = user.clientSockets.get(socket);
+            if (clientSocket == null || messages == null) {
+                return;
+            }
+            final JsonObject page = HistoryPageHandler.toJson((String) channel, beforeSequence, afterSequence, messages);
+            clientSocket.send(new JsonObject().put("page", page).toBuffer());
+        });
+    }
+
+    /**
+     * The history is sent for the added channels, and for the channels in since that the client was already
+     * subscribed to.
+     */
+    private void updateChannelsForSocket(SockJSSocket socket, User user, String token, Map<String, Long> since) {
         final BiConsumer<User, Set<String>> onAuthSuccess = (newUser, channels) -> {
             final Set<String> added = verticle.channelService.updateSubscriptions(user, channels);
-            verticle.fetchHistoryMessages(added, (channel, messages) -> {
-                ChatEnvelope envelope = ChatEnvelope.forMessages(messages);
-                send(socket, envelope);
-            });
+            final ClientSocket clientSocket = user.clientSockets.get(socket);
+            if (clientSocket == null) {
+                return;
+            }
+            final Set<String> historyChannels = new LinkedHashSet<>(added);
+            for (String channel : since.keySet()) {
+                if (channels.contains(channel)) {
+                    historyChannels.add(channel);
+                }
+            }
+            verticle.fetchHistoryMessages(historyChannels, since, (result) -> sendHistory(clientSocket, result, since));
         };
-        executeAuthentication(socket, user, token, onAuthSuccess);
+        //The client asks for an update because its channels changed, so a cached response would be outdated
+        executeAuthentication(socket, user, token, false, onAuthSuccess);
 
     }
 }
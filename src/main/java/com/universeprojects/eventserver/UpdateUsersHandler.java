@@ -1,19 +1,25 @@
 package com.universeprojects.eventserver;
 
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.RoutingContext;
 
-import java.util.Map;
-
 public class UpdateUsersHandler implements Handler<RoutingContext> {
 
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     private final EventServerVerticle verticle;
+    private final long maxBodySize;
 
     public UpdateUsersHandler(EventServerVerticle verticle) {
         this.verticle = verticle;
+        this.maxBodySize = Config.getLong(IncomingMessageHandler.CONFIG_MAX_BODY_SIZE, IncomingMessageHandler.DEFAULT_MAX_BODY_SIZE);
     }
 
     @Override
@@ -24,16 +30,48 @@ public class UpdateUsersHandler implements Handler<RoutingContext> {
             return;
         }
 
-        context.request().bodyHandler((buffer) -> {
-            JsonObject json = buffer.toJsonObject();
-            JsonObject userChannels = json.getJsonObject("userChannels");
-            for(Map.Entry<String, Object> entry : userChannels.getMap().entrySet()) {
-                String userId = entry.getKey();
-                JsonArray channels = (JsonArray) entry.getValue();
-                String address = verticle.generateUserUpdateAddress(userId);
-                verticle.eventBus.publish(address, channels);
-            }
+        if(IncomingMessageHandler.exceedsMaxBodySize(context.request().getHeader(HttpHeaders.CONTENT_LENGTH), maxBodySize)) {
+            context.response().setStatusCode(413);
             context.response().end();
+            return;
+        }
+
+        final IngestionQueue.Entry queueEntry = verticle.ingestionQueue.admit(context, "updateUsers");
+        if(queueEntry == null) {
+            return;
+        }
+
+        final Buffer buffer = Buffer.buffer();
+        final boolean[] tooLarge = new boolean[1];
+        queueEntry.stream((chunk) -> {
+            if(tooLarge[0]) {
+                return;
+            }
+            if(buffer.length() + chunk.length() > maxBodySize) {
+                tooLarge[0] = true;
+                queueEntry.finish(413);
+                return;
+            }
+            buffer.appendBuffer(chunk);
+        }, () -> {
+            if(tooLarge[0]) {
+                return;
+            }
+            try {
+                JsonObject json = buffer.toJsonObject();
+                JsonObject userChannels = json.getJsonObject("userChannels");
+                JsonArray userIds = new JsonArray();
+                for(String userId : userChannels.fieldNames()) {
+                    JsonArray channels = userChannels.getJsonArray(userId);
+                    verticle.messageRouter.publishUserUpdate(userId, channels);
+                    userIds.add(userId);
+                }
+                verticle.authService.invalidateUsers(userIds);
+                queueEntry.finish(200);
+            } catch (RuntimeException ex) {
+                log.error("Error processing /updateUsers", ex);
+                queueEntry.finish(500);
+            }
         });
     }
 }
@@ -1,8 +1,7 @@
 package com.universeprojects.eventserver;
 
 import io.prometheus.client.Gauge;
-import io.vertx.core.eventbus.MessageConsumer;
-import io.vertx.core.json.JsonArray;
+import io.vertx.core.Context;
 import io.vertx.core.shareddata.Shareable;
 import io.vertx.ext.web.handler.sockjs.SockJSSocket;
 
@@ -13,6 +12,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
@@ -22,9 +22,9 @@ public class User implements Shareable {
     public final String userId;
     public final Map<String, ChannelSubscription> channelSubscriptions = new TreeMap<>();
     public final Queue<SockJSSocket> sockets = new ConcurrentLinkedQueue<>();
+    public final Map<SockJSSocket, ClientSocket> clientSockets = new ConcurrentHashMap<>();
     public final Map<String, Set<SockJSSocket>> sessionIdToSocketMap = new LinkedHashMap<>();
-    public MessageConsumer<JsonArray> updateConsumer;
-    public MessageConsumer<ChatMessage> privateMessageConsumer;
+    public MessageRouter.Registration registration;
     private boolean removed = false;
     private final ReentrantLock lock = new ReentrantLock();
     private static final Gauge GAUGE_NUM_USERS = Gauge.build().name("users_total").help("Number of total users").register();
@@ -35,11 +35,8 @@ public class User implements Shareable {
     }
 
     public void remove() {
-        if(updateConsumer != null) {
-            updateConsumer.unregister();
-        }
-        if(privateMessageConsumer != null) {
-            privateMessageConsumer.unregister();
+        if(registration != null) {
+            registration.unregister();
         }
         GAUGE_NUM_USERS.dec();
         GAUGE_USER_CONNECTIONS.remove(userId);
@@ -74,7 +71,7 @@ public class User implements Shareable {
         return "User{"+userId+"]";
     }
 
-    public void registerSocket(SockJSSocket socket) {
+    public ClientSocket registerSocket(SockJSSocket socket, Context context, OutboundQueuePolicy outboundQueuePolicy) {
         enforceLockHeld();
         final String sessionId = socket.webSession().id();
         Set<SockJSSocket> socketSet = sessionIdToSocketMap.get(sessionId);
@@ -84,7 +81,10 @@ public class User implements Shareable {
         }
         socketSet.add(socket);
         sockets.add(socket);
+        final ClientSocket clientSocket = new ClientSocket(socket, context, outboundQueuePolicy);
+        clientSockets.put(socket, clientSocket);
         GAUGE_USER_CONNECTIONS.labels(userId).inc();
+        return clientSocket;
     }
 
     public void removeSocket(SockJSSocket socket) {
@@ -95,6 +95,7 @@ public class User implements Shareable {
             socketSet.remove(socket);
         }
         sockets.remove(socket);
+        releaseClientSocket(socket);
         GAUGE_USER_CONNECTIONS.labels(userId).dec();
     }
 
@@ -105,9 +106,17 @@ public class User implements Shareable {
             return Collections.emptySet();
         }
         sockets.removeAll(socketSet);
+        socketSet.forEach(this::releaseClientSocket);
         return socketSet;
     }
 
+    private void releaseClientSocket(SockJSSocket socket) {
+        final ClientSocket clientSocket = clientSockets.remove(socket);
+        if(clientSocket != null) {
+            clientSocket.release();
+        }
+    }
+
     public void enforceLockHeld() {
         if(!isLockedByCurrentThread()) {
             throw new IllegalStateException("User lock needs to be held");
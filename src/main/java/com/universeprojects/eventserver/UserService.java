@@ -1,9 +1,7 @@
 package com.universeprojects.eventserver;
 
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
 
 import java.util.Collections;
 import java.util.LinkedHashSet;
@@ -30,18 +28,14 @@ public class UserService {
                 return existingUser;
             }
             final User newUser = new User(userId);
-            newUser.executeLocked((user) -> {
-                user.updateConsumer = verticle.eventBus.<JsonArray>consumer(
-                    verticle.generateUserUpdateAddress(userId),
+            newUser.executeLocked((user) ->
+                user.registration = verticle.messageRouter.registerUser(userId,
+                    (message) ->
+                        processPrivateMessage(user, message),
                     (channels) ->
                         processUpdateChannels(user, channels)
-                );
-                user.privateMessageConsumer = verticle.eventBus.<ChatMessage>consumer(
-                    verticle.generatePrivateMessageAddress(userId),
-                    (message) ->
-                        processPrivateMessage(user, message)
-                );
-            });
+                )
+            );
             users.put(userId, newUser);
             return newUser;
         } finally {
@@ -67,18 +61,17 @@ public class UserService {
         }
     }
 
-    private void processUpdateChannels(User user, Message<JsonArray> message) {
+    private void processUpdateChannels(User user, JsonArray message) {
         final Set<String> channels = new LinkedHashSet<>();
-        for (final Object channelObj : message.body()) {
+        for (final Object channelObj : message) {
             channels.add((String) channelObj);
         }
         user.executeLocked(u -> verticle.channelService.updateSubscriptions(u, channels));
     }
 
-    private void processPrivateMessage(User user, Message<ChatMessage> message) {
-        final JsonObject json = ChatEnvelope.forMessage(message.body()).toJson();
-        final Buffer buffer = json.toBuffer();
-        user.sockets.forEach(socket -> socket.write(buffer));
+    private void processPrivateMessage(User user, ChatMessage message) {
+        final Buffer buffer = ChatEnvelope.forMessage(message).toBuffer();
+        user.clientSockets.values().forEach(socket -> socket.send(buffer));
     }
 
     //new userId - no user - create user-object - add channel-subscription / add user to channel-subscription